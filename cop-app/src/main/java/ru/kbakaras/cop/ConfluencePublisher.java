@@ -6,38 +6,52 @@ import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.lang3.mutable.MutableBoolean;
 import org.asciidoctor.Asciidoctor;
 import org.asciidoctor.Attributes;
-import org.asciidoctor.AttributesBuilder;
 import org.asciidoctor.Options;
 import org.asciidoctor.OptionsBuilder;
 import org.asciidoctor.SafeMode;
+import org.asciidoctor.ast.Document;
 import org.htmlcleaner.ContentNode;
 import org.htmlcleaner.TagNode;
 import org.slf4j.Logger;
 import picocli.CommandLine;
 import picocli.CommandLine.Option;
-import ru.kbakaras.cop.adoc.ConfluenceConverter;
+import ru.kbakaras.cop.adoc.AsciidoctorEngine;
+import ru.kbakaras.cop.adoc.DiagramCache;
 import ru.kbakaras.cop.confluence.ConfluenceApi;
+import ru.kbakaras.cop.confluence.ConfluenceTransport;
+import ru.kbakaras.cop.confluence.ContentExpand;
+import ru.kbakaras.cop.confluence.RateLimiter;
+import ru.kbakaras.cop.confluence.RetryPolicy;
 import ru.kbakaras.cop.confluence.dto.Ancestor;
 import ru.kbakaras.cop.confluence.dto.Content;
 import ru.kbakaras.cop.confluence.dto.ContentBody;
 import ru.kbakaras.cop.confluence.dto.ContentBodyValue;
 import ru.kbakaras.cop.confluence.dto.Space;
+import ru.kbakaras.cop.metrics.Metrics;
+import ru.kbakaras.cop.metrics.MetricsReport;
 import ru.kbakaras.cop.model.AttachmentSource;
 import ru.kbakaras.cop.model.PageSource;
-import ru.kbakaras.sugar.restclient.LoginPasswordDto;
-import ru.kbakaras.sugar.restclient.SugarRestClient;
-import ru.kbakaras.sugar.restclient.SugarRestIdentityBasic;
+import ru.kbakaras.sugar.lazy.Lazy;
 
 import java.io.File;
 import java.io.IOException;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
 
 @CommandLine.Command(
         name = "Confluence Publisher",
@@ -48,6 +62,7 @@ import java.util.concurrent.Callable;
         subcommands = {
                 PublishCommand.class,
                 UpdateCommand.class,
+                SyncCommand.class,
                 SourceCommand.class
         })
 public class ConfluencePublisher implements Callable<Integer> {
@@ -68,6 +83,64 @@ public class ConfluencePublisher implements Callable<Integer> {
     @Option(names = {"-a", "--attribute"}, description = "Attribute overrides")
     Map<String, Object> attributes;
 
+    @Option(names = {"--max-requests"}, description = "Maximum number of concurrent requests to Confluence", defaultValue = "4")
+    private int maxRequests;
+
+    @Option(names = {"--page-size"}, description = "Number of results requested per page from Confluence list endpoints", defaultValue = "" + ConfluenceApi.DEFAULT_PAGE_SIZE)
+    private int pageSize;
+
+    @Option(names = {"--retries"}, description = "Maximum number of attempts for a request that failed with a transient error", defaultValue = "5")
+    private int retries;
+
+    @Option(names = {"--retry-delay"}, description = "Delay in milliseconds before the first retry, doubled on each next one", defaultValue = "500")
+    private long retryDelay;
+
+    @Option(names = {"--retry-max-delay"}, description = "Maximum delay in milliseconds between retries unless the server asks for more", defaultValue = "30000")
+    private long retryMaxDelay;
+
+    @Option(names = {"--rate-limit"}, description = "Maximum number of requests per second, 0 to adapt to the server's rate limits only", defaultValue = "0")
+    private double rateLimit;
+
+    @Option(names = {"--max-connections"}, description = "Maximum number of pooled connections to Confluence", defaultValue = "4")
+    private int maxConnections;
+
+    @Option(names = {"--connect-timeout"}, description = "Connection timeout in seconds", defaultValue = "30")
+    private int connectTimeout;
+
+    @Option(names = {"--socket-timeout"}, description = "Timeout in seconds for waiting for data from Confluence", defaultValue = "300")
+    private int socketTimeout;
+
+    @Option(names = {"--idle-timeout"}, description = "Time in seconds after which an idle pooled connection is closed", defaultValue = "30")
+    private int idleTimeout;
+
+    @Option(names = {"--verify"},
+            description = "When to read back published content and compare it with converted one: ${COMPLETION-CANDIDATES}",
+            defaultValue = "SAMPLED")
+    private VerifyMode verifyMode;
+
+    @Option(names = {"--verify-rate"}, description = "Share of pages verified in SAMPLED mode", defaultValue = "0.1")
+    private double verifyRate;
+
+    @Option(names = {"--metrics"}, description = "Log timing metrics per phase and per page at the end of the run", defaultValue = "false")
+    private boolean metrics;
+
+    @Option(names = {"--metrics-file"}, description = "File to write timing metrics and counters to at the end of the run")
+    private File metricsFile;
+
+    @Option(names = {"--metrics-format"}, description = "Format of the metrics file: ${COMPLETION-CANDIDATES}", defaultValue = "JSON")
+    private MetricsReport.Format metricsFormat;
+
+    @Option(names = {"--diagram-cache"}, description = "Directory to keep rendered diagrams in between runs. "
+            + "Must not be used by several runs at the same time")
+    private File diagramCacheDir;
+
+    @Option(names = {"--diagram-cache-size"}, description = "Maximum size of the diagram cache in megabytes", defaultValue = "256")
+    private long diagramCacheSize;
+
+    private final AsciidoctorEngine asciidoctorEngine = new AsciidoctorEngine();
+    private final Lazy<Optional<DiagramCache>> diagramCache = Lazy.of(() -> Optional.ofNullable(diagramCacheDir)
+            .map(dir -> new DiagramCache(dir, diagramCacheSize * FileUtils.ONE_MB)));
+
 
     @SneakyThrows
     @Override
@@ -85,13 +158,38 @@ public class ConfluencePublisher implements Callable<Integer> {
                 .map(id -> new Ancestor[]{new Ancestor(id)})
                 .ifPresent(content::setAncestors);
 
-        ContentBodyValue contentValue = new ContentBodyValue(pageSource.getContent(), ContentBodyValue.REPRESENTATION_Storage);
+        // Содержимое записывается в тело запроса прямо из PageSource, без промежуточной строки в DTO.
+        ContentBodyValue contentValue = ContentBodyValue.streamed(pageSource::writeTo, ContentBodyValue.REPRESENTATION_Storage);
         ContentBody contentBody = new ContentBody();
         contentBody.setStorage(contentValue);
 
         content.setBody(contentBody);
     }
 
+    /**
+     * Определяет, нужно ли после записи очередной страницы сверить сохранённое Confluence содержимое
+     * с отправленным, и возвращает соответствующий профиль ответа на запись. Без сверки содержимое
+     * страницы в ответе не запрашивается.
+     */
+    ContentExpand writeExpand() {
+
+        boolean verify = verifyMode == VerifyMode.ALWAYS
+                || verifyMode == VerifyMode.SAMPLED && ThreadLocalRandom.current().nextDouble() < verifyRate;
+
+        return verify ? ContentExpand.VERIFY : ContentExpand.METADATA;
+    }
+
+    /**
+     * Сверяет содержимое, возвращённое Confluence в ответе на запись, с отправленным. Если содержимое
+     * в ответе не запрашивалось, сверка не выполняется.
+     *
+     * @return описание первого различия или пустое значение, если различий нет или сверка не выполнялась
+     */
+    static Optional<String> verifyDifference(PageSource pageSource, Content written) {
+        return Optional.ofNullable(written.getBody())
+                .flatMap(body -> pageSource.findDifference(body.getStorage().getValue()));
+    }
+
     void checkListFileOrFileIsSupplied(File listFile, File file, Logger log) {
 
         if (listFile == null && file == null) {
@@ -103,24 +201,71 @@ public class ConfluencePublisher implements Callable<Integer> {
         }
     }
 
-    Map<String, PageSource> convertTargets(UpdateTarget[] targets, String titlePrefix, Logger log, MutableBoolean stop) {
+    /**
+     * Конвертирует документы пакета. При {@code jobs > 1} конвертация выполняется параллельно в пуле
+     * из {@code jobs} потоков, каждый из которых использует собственный экземпляр Asciidoctor.
+     * Ошибки конвертации выводятся в лог по каждому документу, после чего взводится флаг {@code stop}.
+     */
+    Map<UpdateTarget, PageSource> convertTargets(UpdateTarget[] targets, String titlePrefix, int jobs,
+                                           Logger log, MutableBoolean stop) {
+
+        Map<UpdateTarget, PageSource> result = Collections.synchronizedMap(new HashMap<>());
+        long batchStart = System.nanoTime();
 
-        Map<String, PageSource> result = new HashMap<>();
+        if (jobs <= 1 || targets.length <= 1) {
+            for (UpdateTarget target : targets) {
+                if (!convertTarget(target, titlePrefix, result, log)) {
+                    stop.setTrue();
+                }
+            }
 
-        for (UpdateTarget target : targets) {
+        } else {
+            ExecutorService executor = Executors.newFixedThreadPool(Math.min(jobs, targets.length));
             try {
-                log.info("Running asciidoctor conversion of '{}'", target.file);
-                result.put(target.pageId, convertPageSource(target.file, titlePrefix));
+                List<Future<Boolean>> futures = new ArrayList<>();
+                for (UpdateTarget target : targets) {
+                    futures.add(executor.submit(() -> convertTarget(target, titlePrefix, result, log)));
+                }
+
+                for (Future<Boolean> future : futures) {
+                    if (!future.get()) {
+                        stop.setTrue();
+                    }
+                }
 
-            } catch (Exception e) {
-                log.error("Asciidoctor conversion of '" + target.file + "' failed", e);
+            } catch (InterruptedException | ExecutionException e) {
+                log.error("Asciidoctor conversion was interrupted", e);
                 stop.setTrue();
+
+            } finally {
+                executor.shutdownNow();
             }
         }
 
+        log.info("Asciidoctor conversion of {} file(s) took {} ms",
+                targets.length, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - batchStart));
+
         return result;
     }
 
+    private boolean convertTarget(UpdateTarget target, String titlePrefix, Map<UpdateTarget, PageSource> result, Logger log) {
+
+        try (Metrics.Scope ignored = Metrics.page(target.file)) {
+            log.info("Running asciidoctor conversion of '{}'", target.file);
+            long start = System.nanoTime();
+            try (Metrics.Sample ignoredSample = Metrics.start("convert")) {
+                result.put(target, convertPageSource(target.file, titlePrefix));
+            }
+            log.info("  converted '{}' in {} ms",
+                    target.file.getName(), TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+            return true;
+
+        } catch (Exception e) {
+            log.error("Asciidoctor conversion of '" + target.file + "' failed", e);
+            return false;
+        }
+    }
+
     /**
      * Метод вызывается из команд публикации/обновления страницы. Он исполняет последовательность действий:
      * <ol>
@@ -134,36 +279,62 @@ public class ConfluencePublisher implements Callable<Integer> {
      */
     PageSource convertPageSource(File file, String titlePrefix) throws IOException {
 
-        String pageContentSource = FileUtils.readFileToString(file, StandardCharsets.UTF_8);
+        File documentDir = file.getAbsoluteFile().getParentFile();
+
+        // Диаграммы документов одного каталога рендерятся в общий подкаталог кэша, а asciidoctor-diagram
+        // записывает файлы на место, без переименования. Поэтому такие документы конвертируются по очереди:
+        // иначе параллельная конвертация могла бы прочитать недописанное изображение.
+        Optional<Lock> diagramLock = diagramCache.get().map(cache -> cache.lock(documentDir));
+        diagramLock.ifPresent(Lock::lock);
+        try {
+            return convertPageSource(file, documentDir, titlePrefix);
+        } finally {
+            diagramLock.ifPresent(Lock::unlock);
+        }
+    }
 
-        // region Конвертация документа в формат хранения Confluence
-        Asciidoctor asciidoctor = Asciidoctor.Factory.create();
-        asciidoctor.javaConverterRegistry().register(ConfluenceConverter.class);
-        asciidoctor.requireLibrary("asciidoctor-diagram");
+    private PageSource convertPageSource(File file, File documentDir, String titlePrefix) throws IOException {
 
+        String pageContentSource = FileUtils.readFileToString(file, StandardCharsets.UTF_8);
+        String pageTitle;
+        String pageContent;
 
-        String pageTitle = Optional.ofNullable(titlePrefix).orElse("") + asciidoctor
-                .load(pageContentSource, Options.builder().parseHeaderOnly(true).build())
-                .getDoctitle();
+        // region Конвертация документа в формат хранения Confluence
+        Asciidoctor asciidoctor = asciidoctorEngine.acquire();
+        try {
+            OptionsBuilder options = Options.builder()
+                    .backend("confluence")
+                    .baseDir(documentDir)
+                    .toFile(false)
+                    .safe(SafeMode.UNSAFE);
+
+            // Переопределения атрибутов из командной строки применяются после атрибутов кэша диаграмм.
+            Map<String, Object> documentAttributes = new HashMap<>();
+            diagramCache.get()
+                    .map(cache -> cache.attributes(documentDir))
+                    .ifPresent(documentAttributes::putAll);
+            Optional.ofNullable(attributes)
+                    .ifPresent(documentAttributes::putAll);
+            if (!documentAttributes.isEmpty()) {
+                options.attributes(Attributes.builder().attributes(documentAttributes).build());
+            }
 
-        OptionsBuilder options = Options.builder()
-                .backend("confluence")
-                .baseDir(file.getAbsoluteFile().getParentFile())
-                .toFile(false)
-                .safe(SafeMode.UNSAFE);
-        Optional.ofNullable(attributes)
-                .map(Attributes.builder()::attributes)
-                .map(AttributesBuilder::build)
-                .ifPresent(options::attributes);
+            // Документ разбирается один раз: и заголовок, и содержимое берутся из одного и того же разбора.
+            try (Metrics.Sample ignored = Metrics.start("asciidoctor.convert")) {
+                Document document = asciidoctor.load(pageContentSource, options.build());
 
-        String pageContent = asciidoctor.convert(pageContentSource, options.build());
+                pageTitle = Optional.ofNullable(titlePrefix).orElse("") + document.getDoctitle();
+                pageContent = document.convert();
+            }
 
-        asciidoctor.shutdown();
+        } finally {
+            asciidoctorEngine.release(asciidoctor);
+        }
         // endregion
 
         TagNode node = PageSource.cleanContent(pageContent);
 
-        File attachmentDir = file.getAbsoluteFile().getParentFile();
+        File attachmentDir = documentDir;
         Map<File, AttachmentSource> attachments = new HashMap<>();
 
         List<? extends TagNode> linkNodes =
@@ -206,7 +377,15 @@ public class ConfluencePublisher implements Callable<Integer> {
 
         for (TagNode imageNode: imageNodes) {
 
-            File imageFile = new File(attachmentDir, imageNode.getAttributeByName("ri:filename"));
+            String imageName = imageNode.getAttributeByName("ri:filename");
+            File imageFile = new File(attachmentDir, imageName);
+
+            // Изображения диаграмм при включённом кэше размещаются не рядом с документом, а в каталоге кэша.
+            if (!imageFile.exists()) {
+                imageFile = diagramCache.get()
+                        .flatMap(cache -> cache.resolve(documentDir, imageName))
+                        .orElse(imageFile);
+            }
 
             AttachmentSource attachmentSource = attachments
                     .computeIfAbsent(imageFile, AttachmentSource::new)
@@ -221,26 +400,49 @@ public class ConfluencePublisher implements Callable<Integer> {
 
     ConfluenceApi confluenceApi() {
         return new ConfluenceApi(baseUrl,
-                new SugarRestClient(new SugarRestIdentityBasic() {
-
-                    @Override
-                    public LoginPasswordDto getLoginAndPassword() {
-                        return new LoginPasswordDto(login, String.valueOf(password));
-                    }
-
-                })
+                new ConfluenceTransport(login, String.valueOf(password),
+                        maxConnections, connectTimeout, socketTimeout, idleTimeout),
+                maxRequests,
+                new RetryPolicy(retries, retryDelay, retryMaxDelay),
+                new RateLimiter(rateLimit),
+                pageSize
         );
     }
 
 
     public static void main(String... args) {
-        int exitCode = new CommandLine(new ConfluencePublisher())
-                .setExecutionExceptionHandler(new ExceptionHandler())
-                .execute(args);
+        ConfluencePublisher publisher = new ConfluencePublisher();
+
+        int exitCode;
+        try (AsciidoctorEngine ignored = publisher.asciidoctorEngine) {
+            exitCode = new CommandLine(publisher)
+                    .setExecutionExceptionHandler(new ExceptionHandler())
+                    .execute(args);
+
+            // Вытеснение выполняется после публикации: вложения зачитываются из файлов кэша при отправке.
+            publisher.diagramCache.get().ifPresent(DiagramCache::evict);
+
+            publisher.reportMetrics();
+        }
+
         System.exit(exitCode);
     }
 
 
+    /**
+     * Выводит метрики запуска в лог и в файл, если это запрошено параметрами.
+     */
+    private void reportMetrics() {
+
+        MetricsReport report = new MetricsReport();
+        if (metrics) {
+            report.log();
+        }
+        if (metricsFile != null) {
+            report.write(metricsFile, metricsFormat);
+        }
+    }
+
     private static boolean isAbsoluteUri(String href) {
         //noinspection HttpUrlsUsage
         return href.startsWith("http://") || href.startsWith("https://");
@@ -251,6 +453,10 @@ public class ConfluencePublisher implements Callable<Integer> {
         return StringUtils.isNotBlank(new URI(href).getFragment());
     }
 
+    enum VerifyMode {
+        ALWAYS, SAMPLED, NEVER
+    }
+
     private static class ExceptionHandler implements CommandLine.IExecutionExceptionHandler {
 
         @Override
@@ -0,0 +1,128 @@
+package ru.kbakaras.cop;
+
+import org.slf4j.Logger;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Function;
+
+/**
+ * Конвейер обработки страниц пакета. Страницы обрабатываются параллельно в пуле из {@code jobs} потоков,
+ * но все шаги обработки одной страницы выполняются одной задачей последовательно, поэтому порядок
+ * внутри страницы (содержимое, вложения, режим отображения) сохраняется. Количество одновременных
+ * запросов к Confluence ограничивается отдельно, в {@link ru.kbakaras.cop.confluence.ConfluenceApi}.
+ * <p>
+ * Ошибка обработки одной страницы не прерывает обработку остальных: по каждой странице формируется
+ * итог {@link PageOutcome}.
+ */
+class PagePipeline {
+
+    private final int jobs;
+    private final Logger log;
+
+
+    PagePipeline(int jobs, Logger log) {
+        this.jobs = jobs;
+        this.log = log;
+    }
+
+
+    <T> List<PageOutcome> execute(List<T> pages, Function<T, String> pageName, PageTask<T> task)
+            throws InterruptedException {
+
+        List<PageOutcome> outcomes = new ArrayList<>();
+
+        if (jobs <= 1 || pages.size() <= 1) {
+            for (T page : pages) {
+                outcomes.add(run(page, pageName, task));
+            }
+
+        } else {
+            ExecutorService executor = Executors.newFixedThreadPool(Math.min(jobs, pages.size()));
+            try {
+                List<Future<PageOutcome>> futures = new ArrayList<>();
+                for (T page : pages) {
+                    futures.add(executor.submit(() -> run(page, pageName, task)));
+                }
+
+                for (Future<PageOutcome> future : futures) {
+                    outcomes.add(future.get());
+                }
+
+            } catch (ExecutionException e) {
+                throw new IllegalStateException(e.getCause());
+
+            } finally {
+                executor.shutdownNow();
+            }
+        }
+
+        return outcomes;
+    }
+
+    private <T> PageOutcome run(T page, Function<T, String> pageName, PageTask<T> task) {
+
+        String name = pageName.apply(page);
+        try {
+            return new PageOutcome(name, task.run(page), null);
+
+        } catch (Exception e) {
+            log.error("Processing of page {} failed", name, e);
+            return new PageOutcome(name, null, e);
+        }
+    }
+
+
+    /**
+     * Выводит в лог итог обработки по каждой странице, а после него дополнительные сведения о запуске
+     * ({@code details}). Если обработка хотя бы одной страницы завершилась ошибкой, выбрасывает исключение.
+     */
+    void report(List<PageOutcome> outcomes, String... details) {
+
+        log.info("Summary:");
+        outcomes.forEach(outcome -> {
+            if (outcome.failed()) {
+                log.error("  FAILED {}: {}", outcome.page, outcome.error.toString());
+            } else {
+                log.info("  OK     {}: {}", outcome.page, outcome.result);
+            }
+        });
+        for (String detail : details) {
+            log.info("  {}", detail);
+        }
+
+        long failed = outcomes.stream().filter(PageOutcome::failed).count();
+        if (failed > 0) {
+            throw new IllegalStateException(String.format(
+                    "Processing of %d page(s) out of %d failed", failed, outcomes.size()));
+        }
+    }
+
+
+    @FunctionalInterface
+    interface PageTask<T> {
+        String run(T page) throws Exception;
+    }
+
+    static final class PageOutcome {
+
+        final String page;
+        final String result;
+        final Exception error;
+
+        PageOutcome(String page, String result, Exception error) {
+            this.page = page;
+            this.result = result;
+            this.error = error;
+        }
+
+        boolean failed() {
+            return error != null;
+        }
+    }
+
+}
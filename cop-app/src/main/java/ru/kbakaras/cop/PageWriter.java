@@ -0,0 +1,263 @@
+package ru.kbakaras.cop;
+
+import org.slf4j.Logger;
+import ru.kbakaras.cop.confluence.ConfluenceApi;
+import ru.kbakaras.cop.confluence.dto.Attachment;
+import ru.kbakaras.cop.confluence.dto.Content;
+import ru.kbakaras.cop.model.AttachmentDestination;
+import ru.kbakaras.cop.model.AttachmentSource;
+import ru.kbakaras.cop.model.PageSource;
+import ru.kbakaras.sugar.utils.CollectionUpdater;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+/**
+ * Запись страниц в Confluence: создание новой страницы и обновление опубликованной ранее страницы
+ * вместе с её вложениями. Используется командами публикации, обновления и синхронизации.
+ */
+class PageWriter {
+
+    private final ConfluencePublisher parent;
+    private final ConfluenceApi api;
+    private final Logger log;
+
+
+    PageWriter(ConfluencePublisher parent, ConfluenceApi api, Logger log) {
+        this.parent = parent;
+        this.api = api;
+        this.log = log;
+    }
+
+
+    /**
+     * Создаёт новую страницу, загружает её вложения и устанавливает режим отображения по умолчанию.
+     */
+    Content createPage(PageSource pageSource, String spaceKey, String parentId) throws URISyntaxException, IOException {
+
+        // region Создание страницы
+        pageSource
+                .attachmentSourceList
+                .forEach(attachmentSource -> attachmentSource.setVersionAtSave(1));
+
+        Content content = new Content();
+        parent.setContentValue(content, pageSource, spaceKey, parentId);
+
+        Content newContent = api.createContent(content, parent.writeExpand());
+        ConfluencePublisher.verifyDifference(pageSource, newContent).ifPresent(difference ->
+                log.warn("  published content differs from converted at {}, check converter", difference));
+        // endregion
+
+        // region Загрузка изображений
+        for (AttachmentSource is : pageSource.attachmentSourceList) {
+            log.info("  publishing new attachment '{}'", is.name);
+            api.createAttachment(newContent.getId(), is.name, is.mime, is.file, is.getHashComment());
+        }
+        // endregion
+
+        api.setDefaultAppearance(newContent);
+
+        return newContent;
+    }
+
+    /**
+     * Обновляет опубликованную ранее страницу. Вложения сверяются по хэшам, и загружаются только новые
+     * и изменившиеся. Содержимое страницы обновляется, только если изменились заголовок, содержимое
+     * или страницу нужно переместить.
+     *
+     * @param oldContent текущее состояние страницы в Confluence (с содержимым, см. {@link ConfluenceApi#getContentById(String)})
+     * @param parentId   идентификатор новой родительской страницы, если страницу нужно переместить, иначе null
+     */
+    PageChanges updatePage(Content oldContent, PageSource pageSource, String parentId) throws URISyntaxException, IOException {
+
+        List<String> changes = new ArrayList<>();
+
+        // region Обновление изображений (вложений)
+        List<AttachmentDestination> destinationImages =
+                destinationAttachments(api.findAttachmentsByContentId(oldContent.getId()), pageSource);
+
+        new CollectionUpdater<AttachmentDestination, AttachmentSource, String>(id -> id.name, is -> is.name)
+
+                .check4Changes(PageWriter::attachmentChanged)
+
+                .createElement(is -> {
+                    try {
+                        log.info("  publishing new attachment '{}'", is.name);
+                        api.createAttachment(oldContent.getId(), is.name, is.mime, is.file, is.getHashComment());
+                        is.setVersionAtSave(1);
+                        changes.add("new attachment '" + is.name + "'");
+                    } catch (URISyntaxException | IOException e) {
+                        throw new RuntimeException(e);
+                    }
+                })
+
+                .updateElement((id, is) -> {
+                    try {
+                        log.info("  updating attachment '{}'", is.name);
+                        api.updateAttachmentData(oldContent.getId(), id.attachment, is.file, is.getHashComment());
+                        is.setVersionAtSave(id.attachment.getVersion().getNumber() + 1);
+                        changes.add("updated attachment '" + is.name + "'");
+                    } catch (URISyntaxException | IOException e) {
+                        throw new RuntimeException(e);
+                    }
+                })
+
+                .collection(destinationImages, pageSource.attachmentSourceList);
+        // endregion
+
+        // region Обновление основного содержимого страницы
+        int publishedVersion = oldContent.getVersion().getNumber();
+        Optional<String> difference = pageSource.findDifference(oldContent.getBody().getStorage().getValue());
+        boolean contentChanged = !pageSource.title.equals(oldContent.getTitle()) || difference.isPresent();
+
+        if (contentChanged || parentId != null) {
+            log.info("  updating page content");
+            difference.ifPresent(path -> log.info("  content differs at {}", path));
+            Content content = new Content();
+            content.setVersion(oldContent.getVersion());
+            content.getVersion().setNumber(content.getVersion().getNumber() + 1);
+            parent.setContentValue(content, pageSource, oldContent.getSpace().getKey(), parentId);
+
+            content = api.updateContent(oldContent.getId(), content, parent.writeExpand());
+            publishedVersion = content.getVersion().getNumber();
+            if (contentChanged) {
+                changes.add("updated content");
+            }
+
+            ConfluencePublisher.verifyDifference(pageSource, content).ifPresent(path ->
+                    log.warn("  updated content differs from converted at {}, check converter", path));
+
+            if (!pageSource.title.equals(oldContent.getTitle())) {
+                log.info("  RENAMED: {}", oldContent.getTitle());
+                log.info("  -------> {}", content.getTitle());
+                changes.add("renamed from '" + oldContent.getTitle() + "'");
+            }
+
+            if (parentId != null) {
+                log.info("  MOVED under pageId={}", parentId);
+                changes.add("moved under pageId=" + parentId);
+            }
+        }
+        // endregion
+
+        api.setDefaultAppearance(oldContent);
+
+        return new PageChanges(changes, publishedVersion);
+    }
+
+
+    /**
+     * Составляет план обновления страницы, ничего не изменяя в Confluence. Вложения и содержимое
+     * сравниваются так же, как при {@link #updatePage}, в том числе с учётом номеров версий вложений,
+     * которые при обновлении записываются в содержимое страницы.
+     *
+     * @param attachments вложения страницы, полученные заранее вместе с её содержимым
+     */
+    UpdatePlan.Page planUpdate(Content oldContent, Iterable<Attachment> attachments, PageSource pageSource, File file)
+            throws URISyntaxException, IOException {
+
+        UpdatePlan.Page plan = new UpdatePlan.Page(
+                file.getPath(), oldContent.getId(), pageSource.title, oldContent.getVersion().getNumber());
+
+        new CollectionUpdater<AttachmentDestination, AttachmentSource, String>(id -> id.name, is -> is.name)
+
+                .check4Changes(PageWriter::attachmentChanged)
+
+                .createElement(is -> {
+                    is.setVersionAtSave(1);
+                    plan.getCreatedAttachments().add(is.name);
+                })
+
+                .updateElement((id, is) -> {
+                    is.setVersionAtSave(id.attachment.getVersion().getNumber() + 1);
+                    plan.getUpdatedAttachments().add(is.name);
+                })
+
+                .deleteElement(id -> plan.getOrphanedAttachments().add(id.name))
+
+                .collection(destinationAttachments(attachments, pageSource), pageSource.attachmentSourceList);
+
+        Optional<String> difference = pageSource.findDifference(oldContent.getBody().getStorage().getValue());
+        plan.setContentChanged(difference.isPresent());
+        difference.ifPresent(plan::setContentDifference);
+        plan.setContentDigest(pageSource.getContentDigest());
+        if (!pageSource.title.equals(oldContent.getTitle())) {
+            plan.setRenamedFrom(oldContent.getTitle());
+        }
+
+        return plan;
+    }
+
+
+    /**
+     * Описания опубликованных вложений страницы для сравнения с файлами документа. Хэш берётся
+     * из комментария к вложению, а если его там нет, вычисляется по скачанному содержимому.
+     */
+    private List<AttachmentDestination> destinationAttachments(Iterable<Attachment> attachments, PageSource pageSource)
+            throws URISyntaxException, IOException {
+
+        Set<String> sourceNames = pageSource.attachmentSourceList.stream()
+                .map(is -> is.name)
+                .collect(Collectors.toSet());
+
+        List<AttachmentDestination> destinationImages = new ArrayList<>();
+        for (Attachment attachment : attachments) {
+
+            Optional<AttachmentDestination> stored = AttachmentDestination.fromStoredHash(attachment);
+
+            if (stored.isPresent()) {
+                destinationImages.add(stored.get());
+
+            } else if (sourceNames.contains(attachment.getTitle())) {
+                destinationImages.add(new AttachmentDestination(attachment, api.getAttachmentData(attachment)));
+
+            } else {
+                // Вложение не соответствует ни одному файлу страницы и ни с чем не сравнивается,
+                // поэтому скачивать его содержимое не нужно.
+                destinationImages.add(AttachmentDestination.withoutHash(attachment));
+            }
+        }
+
+        return destinationImages;
+    }
+
+    /**
+     * Сравнивает опубликованное вложение с файлом документа. Для неизменившегося вложения
+     * в содержимое страницы записывается его текущая версия.
+     */
+    private static boolean attachmentChanged(AttachmentDestination id, AttachmentSource is) {
+
+        if (id.sha1.equals(is.sha1)) {
+            is.setVersionAtSave(id.attachment.getVersion().getNumber());
+            return false;
+        }
+        return true;
+    }
+
+
+    /**
+     * Итог обновления страницы: перечень внесённых изменений и номер версии страницы после обновления.
+     */
+    static final class PageChanges {
+
+        final List<String> changes;
+        final int publishedVersion;
+
+        PageChanges(List<String> changes, int publishedVersion) {
+            this.changes = changes;
+            this.publishedVersion = publishedVersion;
+        }
+
+        @Override
+        public String toString() {
+            return changes.isEmpty() ? "unchanged" : String.join(", ", changes);
+        }
+    }
+
+}
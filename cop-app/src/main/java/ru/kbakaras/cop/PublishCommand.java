@@ -4,17 +4,20 @@ import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.lang3.mutable.MutableBoolean;
 import picocli.CommandLine;
 import ru.kbakaras.cop.confluence.ConfluenceApi;
+import ru.kbakaras.cop.confluence.ConfluenceStatusException;
 import ru.kbakaras.cop.confluence.dto.Content;
-import ru.kbakaras.cop.confluence.dto.ContentList;
+import ru.kbakaras.cop.metrics.Metrics;
 import ru.kbakaras.cop.model.PageSource;
-import ru.kbakaras.sugar.restclient.StatusAssertionFailed;
 
 import java.io.File;
 import java.io.IOException;
 import java.net.URISyntaxException;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.Callable;
-import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
 
 @CommandLine.Command(
         name = "publish",
@@ -24,10 +27,6 @@ import java.util.concurrent.TimeUnit;
 @Slf4j
 public class PublishCommand implements Callable<Integer> {
 
-    private static final int ATTEMPT_COUNT = 3;
-    private static final long ATTEMPT_SLEEP_SECONDS = 2;
-
-
     @CommandLine.ParentCommand
     private ConfluencePublisher parent;
 
@@ -49,6 +48,9 @@ public class PublishCommand implements Callable<Integer> {
     @CommandLine.Option(names = {"--test-run"}, description = "Delete published page if --test-run flag is set", defaultValue = "false")
     private boolean testRun;
 
+    @CommandLine.Option(names = {"-j", "--jobs"}, description = "Number of documents converted and published in parallel", defaultValue = "1")
+    private int jobs;
+
 
     @Override
     public Integer call() throws Exception {
@@ -61,20 +63,18 @@ public class PublishCommand implements Callable<Integer> {
 
         MutableBoolean stop = new MutableBoolean(false);
 
-        Map<String, PageSource> newPages = parent.convertTargets(targets, titlePrefix, log, stop);
+        Map<UpdateTarget, PageSource> newPages = parent.convertTargets(targets, titlePrefix, jobs, log, stop);
 
         try (ConfluenceApi api = parent.confluenceApi()) {
 
             // region Поиск в пространстве Confluence страниц с совпадающими заголовками
-            for (UpdateTarget target : targets) {
+            Set<String> existingTitles = api.findExistingTitles(spaceKey, newPages.values().stream()
+                    .map(pageSource -> pageSource.title)
+                    .collect(Collectors.toList()));
 
-                PageSource pageSource = newPages.get(target.pageId);
-
-                ContentList contentList = api.findContentByTitle(spaceKey, pageSource.title);
-                if (contentList.getSize() > 0) {
-                    log.error("Page with same title as '{}' already exists in space {}", pageSource.title, spaceKey);
-                    stop.setTrue();
-                }
+            for (String title : existingTitles) {
+                log.error("Page with same title as '{}' already exists in space {}", title, spaceKey);
+                stop.setTrue();
             }
             // endregion
 
@@ -82,68 +82,48 @@ public class PublishCommand implements Callable<Integer> {
                 throw new IllegalArgumentException();
             }
 
-            for (UpdateTarget target : targets) {
-
-                PageSource pageSource = newPages.get(target.pageId);
-                log.info("Publishing page '{}' from '{}'", pageSource.title, target.file);
-
-                // region Создание страницы
-                pageSource
-                        .attachmentSourceList
-                        .forEach(attachmentSource -> attachmentSource.setVersionAtSave(1));
-
-                Content content = new Content();
-                parent.setContentValue(content, pageSource, spaceKey, parentId);
-
-                Content newContent = api.createContent(content);
-                if (pageSource.differentContent(newContent.getBody().getStorage().getValue())) {
-                    log.warn("  SHA1 of published content differs from converted, check converter");
-                }
-                // endregion
-
-                // region Загрузка изображений
-                pageSource
-                        .attachmentSourceList
-                        .forEach(is -> {
-                            try {
-                                log.info("  publishing new attachment '{}'", is.name);
-                                api.createAttachment(newContent.getId(), is.name, is.mime, is.data);
-                            } catch (URISyntaxException | IOException e) {
-                                throw new RuntimeException(e);
-                            }
-                        });
-                // endregion
-
-                api.setDefaultAppearance(newContent);
-
-                if (testRun) {
-                    log.info("  TEST RUN: trashing published page '{}'", newContent.getTitle());
-                    api.trashContentById(newContent.getId());
-
-                    for (int attempt = 1; attempt <= ATTEMPT_COUNT; attempt++) {
-
-                        // Иногда Confluence отказывает (возвращает ошибку со статусом 500) на шаге purge.
-                        // Поэтому тут предпринимается несколько попыток выполнить purge. И даже если ни
-                        // одна из них не увенчается успехом, это не критично для сборки и можно игнорировать.
-
-                        try {
-                            log.info("  TEST RUN:  purging published page '{}'", newContent.getTitle());
-                            api.purgeContentById(newContent.getId());
-                            break;
-
-                        } catch (StatusAssertionFailed e) {
-                            log.warn("  TEST RUN:  purging published page '{}' failed", newContent.getTitle(), e);
-
-                            try {
-                                TimeUnit.SECONDS.sleep(ATTEMPT_SLEEP_SECONDS);
-                            } catch (InterruptedException ignore) {}
+            PagePipeline pipeline = new PagePipeline(jobs, log);
+            List<PagePipeline.PageOutcome> outcomes = pipeline.execute(
+                    Arrays.asList(targets),
+                    target -> "'" + newPages.get(target).title + "'",
+                    target -> {
+                        try (Metrics.Scope ignored = Metrics.page(target.file)) {
+                            return publishPage(api, target, newPages.get(target));
                         }
-                    }
-                }
-            }
+                    });
+
+            pipeline.report(outcomes, "Connections: " + api.getTransportStatistics());
         }
 
         return 0;
     }
 
+    private String publishPage(ConfluenceApi api, UpdateTarget target, PageSource pageSource)
+            throws URISyntaxException, IOException {
+
+        log.info("Publishing page '{}' from '{}'", pageSource.title, target.file);
+
+        Content newContent = new PageWriter(parent, api, log).createPage(pageSource, spaceKey, parentId);
+
+        if (testRun) {
+            log.info("  TEST RUN: trashing published page '{}'", newContent.getTitle());
+            api.trashContentById(newContent.getId());
+
+            // Иногда Confluence отказывает (возвращает ошибку со статусом 500) на шаге purge. ConfluenceApi
+            // повторяет этот запрос по правилам повторов идемпотентных запросов (--retries), но даже если
+            // ни одна попытка не увенчается успехом, это не критично для сборки и можно игнорировать.
+            try {
+                log.info("  TEST RUN:  purging published page '{}'", newContent.getTitle());
+                api.purgeContentById(newContent.getId());
+
+            } catch (ConfluenceStatusException e) {
+                log.warn("  TEST RUN:  purging published page '{}' failed", newContent.getTitle(), e);
+            }
+
+            return "published and removed (test run), pageId=" + newContent.getId();
+        }
+
+        return "published, pageId=" + newContent.getId();
+    }
+
 }
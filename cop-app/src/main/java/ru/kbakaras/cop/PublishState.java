@@ -0,0 +1,302 @@
+package ru.kbakaras.cop;
+
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.yaml.YAMLFactory;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.io.FileUtils;
+import ru.kbakaras.cop.adoc.ConfluenceConverter;
+import ru.kbakaras.cop.model.PageSource;
+import ru.kbakaras.sugar.lazy.Lazy;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+/**
+ * Локальное состояние пакетной публикации. Хранится в файле рядом с файлом списка страниц
+ * и позволяет пропускать страницы, которые не изменились с момента последней публикации,
+ * ещё до запуска конвертации.
+ * <p>
+ * Для каждой страницы запоминаются:
+ * <ul>
+ * <li>список файлов, из которых получено содержимое страницы (сам документ, включаемые в него
+ * документы, файлы диаграмм и вложений) и общий хэш их содержимого;</li>
+ * <li>отпечаток сборки публикатора, выполнившего конвертацию (см. {@link #CONVERTER_FINGERPRINT});</li>
+ * <li>номер версии страницы в Confluence после публикации.</li>
+ * </ul>
+ * Страница считается неизменной, если совпадают все три значения. Номер версии в Confluence
+ * позволяет обнаружить правку страницы вручную.
+ */
+@Slf4j
+class PublishState {
+
+    private static final Lazy<ObjectMapper> YAML_MAPPER = Lazy
+            .of(() -> new ObjectMapper(new YAMLFactory()).findAndRegisterModules());
+
+    private static final String STATE_FILE_SUFFIX = ".state";
+
+    /**
+     * Блочные макросы asciidoc: {@code include::}, {@code image::}, {@code plantuml::} и т.п.
+     */
+    private static final Pattern PATTERN_BLOCK_MACRO = Pattern.compile("^([a-z][a-z0-9_-]*)::([^\\[\\s][^\\[]*)\\[");
+
+    /**
+     * Отпечаток сборки конвертера: SHA-1 jar-файла, из которого загружен {@link ConfluenceConverter}, или
+     * всех файлов каталога классов, если конвертер загружен не из jar. Номер версии для этого не подходит:
+     * он не меняется между выпусками, а в сборке без фильтрации ресурсов не подставляется вовсе.
+     * Если отпечаток вычислить не удалось, используется случайное значение, и страницы не пропускаются.
+     */
+    private static final Lazy<String> CONVERTER_FINGERPRINT = Lazy.of(PublishState::converterFingerprint);
+
+
+    private final File stateFile;
+    private final Map<String, PageState> pages;
+    private final String converterFingerprint;
+    private final String attributesHash;
+
+
+    private PublishState(File stateFile, Map<String, PageState> pages, Map<String, Object> attributes) {
+        this.stateFile = stateFile;
+        this.pages = pages;
+        this.converterFingerprint = CONVERTER_FINGERPRINT.get();
+        this.attributesHash = DigestUtils.sha1Hex(String.valueOf(
+                Optional.ofNullable(attributes).map(TreeMap::new).orElse(null)));
+    }
+
+
+    /**
+     * Зачитывает состояние, сохранённое для указанного файла списка страниц. Если состояние ещё
+     * не сохранялось или не может быть прочитано, возвращается пустое состояние.
+     *
+     * @param attributes переопределения атрибутов, с которыми выполняется конвертация. Они влияют
+     *                   на результат конвертации, поэтому учитываются в хэше страницы.
+     */
+    static PublishState load(File listFile, Map<String, Object> attributes) {
+
+        File stateFile = new File(listFile.getAbsoluteFile().getParentFile(), listFile.getName() + STATE_FILE_SUFFIX);
+        Map<String, PageState> pages = new TreeMap<>();
+
+        if (stateFile.isFile()) {
+            try {
+                pages.putAll(YAML_MAPPER.get().readValue(stateFile, StateFile.class).getPages());
+            } catch (IOException | RuntimeException e) {
+                // Повреждённое состояние не должно мешать публикации, страницы просто будут обновлены заново.
+                log.warn("Publish state '{}' can not be read, all pages will be updated", stateFile, e);
+                pages.clear();
+            }
+        }
+
+        return new PublishState(stateFile, pages, attributes);
+    }
+
+    synchronized void save() throws IOException {
+
+        StateFile content = new StateFile();
+        content.setPages(new TreeMap<>(pages));
+        YAML_MAPPER.get().writeValue(stateFile, content);
+    }
+
+    File getStateFile() {
+        return stateFile;
+    }
+
+
+    /**
+     * Проверяет, что исходные файлы страницы и сборка публикатора не изменились с момента
+     * последней публикации. Возвращает номер версии страницы в Confluence, который был
+     * получен при последней публикации, если страница не изменилась.
+     */
+    synchronized Optional<Integer> unchangedVersion(UpdateTarget target) {
+
+        PageState state = pages.get(target.pageId);
+        if (state == null || !converterFingerprint.equals(state.getConverterFingerprint())) {
+            return Optional.empty();
+        }
+
+        List<File> files = state.getFiles().stream().map(File::new).collect(Collectors.toList());
+        if (files.isEmpty() || !files.get(0).equals(target.file.getAbsoluteFile())) {
+            return Optional.empty();
+        }
+
+        try {
+            return state.getSourceHash().equals(sourceHash(files))
+                    ? Optional.of(state.getConfluenceVersion())
+                    : Optional.empty();
+
+        } catch (IOException e) {
+            log.warn("Source files of page {} recorded in publish state '{}' can not be read, the page will be updated",
+                    target.pageId, stateFile, e);
+            return Optional.empty();
+        }
+    }
+
+    /**
+     * Запоминает состояние успешно опубликованной страницы. Если не удаётся однозначно определить
+     * все файлы, из которых получено содержимое страницы, состояние страницы не сохраняется,
+     * и она будет обновляться при каждом запуске.
+     */
+    void record(UpdateTarget target, PageSource pageSource, int confluenceVersion) throws IOException {
+
+        Optional<List<File>> files = collectFiles(target.file, pageSource);
+
+        PageState state = null;
+        if (files.isPresent()) {
+            state = new PageState();
+            state.setFiles(files.get().stream().map(File::getPath).collect(Collectors.toList()));
+            state.setSourceHash(sourceHash(files.get()));
+            state.setConverterFingerprint(converterFingerprint);
+            state.setConfluenceVersion(confluenceVersion);
+        }
+
+        synchronized (this) {
+            if (state != null) {
+                pages.put(target.pageId, state);
+            } else {
+                pages.remove(target.pageId);
+            }
+        }
+    }
+
+
+    private static String converterFingerprint() {
+
+        try {
+            File location = new File(ConfluenceConverter.class.getProtectionDomain().getCodeSource().getLocation().toURI());
+            MessageDigest digest = DigestUtils.getSha1Digest();
+
+            if (location.isFile()) {
+                DigestUtils.updateDigest(digest, location);
+
+            } else {
+                List<File> files = new ArrayList<>(FileUtils.listFiles(location, null, true));
+                files.sort(null);
+                for (File file : files) {
+                    digest.update(location.toPath().relativize(file.toPath()).toString().getBytes(StandardCharsets.UTF_8));
+                    DigestUtils.updateDigest(digest, file);
+                }
+            }
+
+            return Hex.encodeHexString(digest.digest());
+
+        } catch (IOException | URISyntaxException | RuntimeException e) {
+            log.warn("Converter fingerprint can not be computed, no page will be skipped", e);
+            return UUID.randomUUID().toString();
+        }
+    }
+
+    private String sourceHash(List<File> files) throws IOException {
+
+        MessageDigest digest = DigestUtils.getSha1Digest();
+        digest.update(attributesHash.getBytes(StandardCharsets.UTF_8));
+
+        for (File file : files) {
+            digest.update(file.getPath().getBytes(StandardCharsets.UTF_8));
+            if (file.isFile()) {
+                try (InputStream is = Files.newInputStream(file.toPath())) {
+                    DigestUtils.updateDigest(digest, is);
+                }
+            } else {
+                digest.update((byte) 0);
+            }
+        }
+
+        return Hex.encodeHexString(digest.digest());
+    }
+
+    /**
+     * Собирает список файлов, из которых получено содержимое страницы. Первым в списке всегда идёт
+     * сам документ. Включаемые документы разбираются рекурсивно. Если цель какого-либо макроса
+     * задана через атрибут, точный список файлов определить нельзя, и возвращается пустое значение.
+     * Изображения учитываются по вложениям, полученным в результате конвертации.
+     */
+    private static Optional<List<File>> collectFiles(File adocFile, PageSource pageSource) throws IOException {
+
+        File baseDir = adocFile.getAbsoluteFile().getParentFile();
+        Set<File> files = new LinkedHashSet<>();
+
+        if (!collectIncludes(adocFile.getAbsoluteFile(), baseDir, files)) {
+            return Optional.empty();
+        }
+
+        pageSource.attachmentSourceList.stream()
+                .map(attachment -> attachment.file.getAbsoluteFile())
+                .sorted()
+                .forEach(files::add);
+
+        return Optional.of(new ArrayList<>(files));
+    }
+
+    private static boolean collectIncludes(File file, File baseDir, Set<File> files) throws IOException {
+
+        if (!files.add(file) || !file.isFile()) {
+            return true;
+        }
+
+        for (String line : FileUtils.readLines(file, StandardCharsets.UTF_8)) {
+
+            Matcher matcher = PATTERN_BLOCK_MACRO.matcher(line);
+            if (!matcher.find() || "image".equals(matcher.group(1))) {
+                continue;
+            }
+
+            String target = matcher.group(2).trim();
+            if (target.contains("{")) {
+                return false;
+            }
+
+            if ("include".equals(matcher.group(1))) {
+                File included = new File(file.getParentFile(), target).getCanonicalFile();
+                if (!collectIncludes(included, baseDir, files)) {
+                    return false;
+                }
+
+            } else {
+                File macroFile = new File(baseDir, target).getCanonicalFile();
+                if (macroFile.isFile()) {
+                    files.add(macroFile);
+                }
+            }
+        }
+
+        return true;
+    }
+
+
+    @Data
+    @NoArgsConstructor
+    @JsonIgnoreProperties(ignoreUnknown = true)
+    static class StateFile {
+        private Map<String, PageState> pages = new TreeMap<>();
+    }
+
+    @Data
+    @NoArgsConstructor
+    @JsonIgnoreProperties(ignoreUnknown = true)
+    static class PageState {
+        private List<String> files = new ArrayList<>();
+        private String sourceHash;
+        private String converterFingerprint;
+        private int confluenceVersion;
+    }
+
+}
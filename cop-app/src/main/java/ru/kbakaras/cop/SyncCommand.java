@@ -0,0 +1,350 @@
+package ru.kbakaras.cop;
+
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.mutable.MutableBoolean;
+import picocli.CommandLine;
+import ru.kbakaras.cop.confluence.ConfluenceApi;
+import ru.kbakaras.cop.confluence.ContentExpand;
+import ru.kbakaras.cop.confluence.dto.Ancestor;
+import ru.kbakaras.cop.confluence.dto.Content;
+import ru.kbakaras.cop.metrics.Metrics;
+import ru.kbakaras.cop.model.PageSource;
+
+import java.io.File;
+import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+/**
+ * Синхронизация дерева каталогов с документами и иерархии страниц в пространстве Confluence.
+ * <p>
+ * Каждый документ {@code .adoc} становится страницей. Каталог соответствует странице, опубликованной
+ * из документа {@code index.adoc} в этом каталоге, и все остальные документы и подкаталоги каталога
+ * становятся её дочерними страницами. Если в каталоге нет {@code index.adoc}, его содержимое
+ * размещается под страницей вышестоящего каталога. Документы и каталоги, имена которых начинаются
+ * с {@code _} или {@code .}, не публикуются: так принято обозначать включаемые фрагменты документов.
+ * <p>
+ * Существующие страницы находятся по заголовкам одним пакетным запросом. Отсутствующие страницы
+ * создаются, существующие обновляются и, если их родительская страница отличается от требуемой,
+ * перемещаются. Родительская страница всегда обрабатывается раньше дочерних, а независимые
+ * поддеревья обрабатываются параллельно. Страницы, которым не соответствует ни один документ,
+ * не удаляются.
+ */
+@CommandLine.Command(
+        name = "sync",
+        mixinStandardHelpOptions = true,
+        header = "Operation to synchronize a directory tree of documents with a tree of pages in Confluence")
+@Slf4j
+public class SyncCommand implements Callable<Integer> {
+
+    private static final String INDEX_FILE = "index.adoc";
+    private static final String DOCUMENT_SUFFIX = ".adoc";
+
+
+    @CommandLine.ParentCommand
+    private ConfluencePublisher parent;
+
+    @CommandLine.Option(names = {"-d", "--dir"}, description = "Root directory of the document tree", required = true)
+    private File dir;
+
+    @CommandLine.Option(names = {"-s", "--space"}, description = "Target space", required = true)
+    private String spaceKey;
+
+    @CommandLine.Option(names = {"-r", "--parent-id"}, description = "Confluence's id of the page to put the tree under", required = true)
+    private String parentId;
+
+    @CommandLine.Option(names = {"-p", "--title-prefix"}, description = "Prefix to add to title of pages being published")
+    private String titlePrefix;
+
+    @CommandLine.Option(names = {"-j", "--jobs"}, description = "Number of documents converted and synchronized in parallel", defaultValue = "1")
+    private int jobs;
+
+
+    @Override
+    public Integer call() throws Exception {
+
+        if (!dir.isDirectory()) {
+            throw new IllegalArgumentException(MessageFormat.format(
+                    "Supplied [dir] ''{0}'' is not a directory", dir));
+        }
+
+        SyncNode tree = scan(dir.getCanonicalFile());
+        List<SyncNode> documents = tree.documents(new ArrayList<>());
+        if (documents.isEmpty()) {
+            log.warn("No documents found in '{}'", dir);
+            return 0;
+        }
+
+        MutableBoolean stop = new MutableBoolean(false);
+
+        Map<UpdateTarget, PageSource> newPages = parent.convertTargets(
+                documents.stream().map(node -> node.target).toArray(UpdateTarget[]::new),
+                titlePrefix, jobs, log, stop);
+
+        if (stop.booleanValue()) {
+            throw new IllegalArgumentException();
+        }
+
+        Map<String, List<SyncNode>> byTitle = groupByTitle(documents, node -> newPages.get(node.target).title);
+
+        try (ConfluenceApi api = parent.confluenceApi()) {
+
+            log.info("Looking up {} page(s) in space {}", documents.size(), spaceKey);
+            Map<String, Content> existing = api.findContentByTitles(spaceKey, byTitle.keySet(), ContentExpand.LOCATION);
+
+            Map<SyncNode, PagePipeline.PageOutcome> outcomes = new ConcurrentHashMap<>();
+            Synchronization synchronization = new Synchronization(api, newPages, existing, outcomes);
+
+            ExecutorService executor = Executors.newFixedThreadPool(Math.max(jobs, 1));
+            try {
+                syncSubtree(tree, parentId, executor, synchronization::syncPage, synchronization::parentFailed).join();
+            } finally {
+                executor.shutdownNow();
+            }
+
+            new PagePipeline(jobs, log).report(
+                    documents.stream().map(outcomes::get).collect(Collectors.toList()),
+                    "Connections: " + api.getTransportStatistics());
+        }
+
+        return 0;
+    }
+
+
+    /**
+     * Строит дерево синхронизации по каталогу. Документы и подкаталоги упорядочиваются по имени.
+     */
+    static SyncNode scan(File directory) {
+
+        File index = new File(directory, INDEX_FILE);
+        SyncNode node = new SyncNode(index.isFile() ? UpdateTarget.publishTarget(index)[0] : null);
+
+        File[] files = Optional.ofNullable(directory.listFiles()).orElse(new File[0]);
+        Arrays.sort(files, Comparator.comparing(File::getName));
+
+        for (File file : files) {
+
+            if (file.getName().startsWith("_") || file.getName().startsWith(".")) {
+                continue;
+            }
+
+            if (file.isDirectory()) {
+                SyncNode child = scan(file);
+                if (child.target != null || !child.children.isEmpty()) {
+                    node.children.add(child);
+                }
+
+            } else if (file.getName().endsWith(DOCUMENT_SUFFIX) && !file.getName().equals(INDEX_FILE)) {
+                node.children.add(new SyncNode(UpdateTarget.publishTarget(file)[0]));
+            }
+        }
+
+        return node;
+    }
+
+
+    /**
+     * Группирует документы по заголовкам страниц без учёта регистра.
+     *
+     * @throws IllegalArgumentException если один и тот же заголовок получен из нескольких документов
+     */
+    static Map<String, List<SyncNode>> groupByTitle(List<SyncNode> documents, Function<SyncNode, String> title) {
+
+        Map<String, List<SyncNode>> byTitle = documents.stream().collect(Collectors.groupingBy(
+                title,
+                () -> new TreeMap<>(String.CASE_INSENSITIVE_ORDER),
+                Collectors.toList()));
+
+        MutableBoolean duplicates = new MutableBoolean(false);
+        byTitle.forEach((pageTitle, nodes) -> {
+            if (nodes.size() > 1) {
+                log.error("Same title '{}' is produced by these files:\n{}", pageTitle, nodes.stream()
+                        .map(node -> "  " + node.target.file.getPath())
+                        .collect(Collectors.joining("\n")));
+                duplicates.setTrue();
+            }
+        });
+
+        if (duplicates.booleanValue()) {
+            throw new IllegalArgumentException();
+        }
+
+        return byTitle;
+    }
+
+    /**
+     * Синхронизирует все поддеревья узла под указанной страницей. Поддеревья независимы друг от друга
+     * и обрабатываются параллельно.
+     *
+     * @param syncPage     синхронизация страницы документа под родительской страницей; возвращает
+     *                     идентификатор страницы или null, если синхронизация завершилась ошибкой
+     * @param parentFailed вызывается для каждого документа-потомка (первый аргумент), страницу которого
+     *                     нельзя разместить из-за ошибки синхронизации родительской страницы (второй аргумент)
+     */
+    static CompletableFuture<Void> syncChildren(SyncNode node, String pageId, ExecutorService executor,
+                                                BiFunction<SyncNode, String, String> syncPage,
+                                                BiConsumer<SyncNode, SyncNode> parentFailed) {
+        return CompletableFuture.allOf(node.children.stream()
+                .map(child -> syncSubtree(child, pageId, executor, syncPage, parentFailed))
+                .toArray(CompletableFuture[]::new));
+    }
+
+    /**
+     * Синхронизирует поддерево узла: сначала страницу узла, затем, после её завершения, поддеревья дочерних
+     * узлов под ней. Параметры как у {@link #syncChildren}.
+     */
+    static CompletableFuture<Void> syncSubtree(SyncNode node, String parentPageId, ExecutorService executor,
+                                               BiFunction<SyncNode, String, String> syncPage,
+                                               BiConsumer<SyncNode, SyncNode> parentFailed) {
+
+        if (node.target == null) {
+            return syncChildren(node, parentPageId, executor, syncPage, parentFailed);
+        }
+
+        return CompletableFuture
+                .supplyAsync(() -> syncPage.apply(node, parentPageId), executor)
+                .thenCompose(pageId -> {
+                    if (pageId != null) {
+                        return syncChildren(node, pageId, executor, syncPage, parentFailed);
+                    }
+
+                    // Без родительской страницы дочерние страницы разместить негде.
+                    node.documents(new ArrayList<>()).stream()
+                            .filter(descendant -> descendant != node)
+                            .forEach(descendant -> parentFailed.accept(descendant, node));
+
+                    return CompletableFuture.completedFuture(null);
+                });
+    }
+
+    /**
+     * Родительская страница, под которую нужно переместить найденную страницу.
+     *
+     * @return {@code parentPageId} или null, если страница уже находится под ней
+     */
+    static String moveTo(Content found, String parentPageId) {
+
+        String currentParentId = Optional.ofNullable(found.getAncestors())
+                .filter(ancestors -> ancestors.length > 0)
+                .map(ancestors -> ancestors[ancestors.length - 1])
+                .map(Ancestor::getId)
+                .orElse(null);
+
+        return parentPageId.equals(currentParentId) ? null : parentPageId;
+    }
+
+
+    /**
+     * Состояние одного запуска синхронизации, общее для всех потоков.
+     */
+    private class Synchronization {
+
+        private final ConfluenceApi api;
+        private final PageWriter writer;
+        private final Map<UpdateTarget, PageSource> newPages;
+        private final Map<String, Content> existing;
+        private final Map<SyncNode, PagePipeline.PageOutcome> outcomes;
+
+        Synchronization(ConfluenceApi api, Map<UpdateTarget, PageSource> newPages, Map<String, Content> existing,
+                        Map<SyncNode, PagePipeline.PageOutcome> outcomes) {
+            this.api = api;
+            this.writer = new PageWriter(parent, api, log);
+            this.newPages = newPages;
+            this.existing = existing;
+            this.outcomes = outcomes;
+        }
+
+
+        /**
+         * Создаёт или обновляет страницу документа.
+         *
+         * @return идентификатор страницы или null, если синхронизация страницы завершилась ошибкой
+         */
+        String syncPage(SyncNode node, String parentPageId) {
+
+            PageSource pageSource = newPages.get(node.target);
+            try (Metrics.Scope ignored = Metrics.page(node.target.file)) {
+                Content found = existing.get(pageSource.title);
+
+                if (found == null) {
+                    log.info("Creating page '{}' from '{}'", pageSource.title, node.target.file);
+                    Content created = writer.createPage(pageSource, spaceKey, parentPageId);
+
+                    outcomes.put(node, new PagePipeline.PageOutcome(pageName(node),
+                            "created, pageId=" + created.getId(), null));
+                    return created.getId();
+
+                } else {
+                    log.info("Updating page '{}' from '{}' for pageId={}", pageSource.title, node.target.file, found.getId());
+                    PageWriter.PageChanges changes = writer.updatePage(
+                            api.getContentById(found.getId()),
+                            pageSource,
+                            moveTo(found, parentPageId));
+
+                    outcomes.put(node, new PagePipeline.PageOutcome(pageName(node),
+                            "pageId=" + found.getId() + ", " + changes, null));
+                    return found.getId();
+                }
+
+            } catch (Exception e) {
+                log.error("Synchronization of page {} failed", pageName(node), e);
+                outcomes.put(node, new PagePipeline.PageOutcome(pageName(node), null, e));
+                return null;
+            }
+        }
+
+        /**
+         * Отмечает документ-потомок как не синхронизированный из-за ошибки родительской страницы.
+         */
+        void parentFailed(SyncNode descendant, SyncNode node) {
+            outcomes.put(descendant, new PagePipeline.PageOutcome(pageName(descendant), null,
+                    new IllegalStateException("Parent page '" + pageName(node) + "' was not synchronized")));
+        }
+
+        private String pageName(SyncNode node) {
+            return "'" + newPages.get(node.target).title + "'";
+        }
+    }
+
+
+    /**
+     * Узел дерева синхронизации: документ или каталог. У каталога документом является его
+     * {@code index.adoc}, а если такого документа нет, узел каталога не имеет собственной страницы.
+     */
+    static final class SyncNode {
+
+        final UpdateTarget target;
+        final List<SyncNode> children = new ArrayList<>();
+
+        SyncNode(UpdateTarget target) {
+            this.target = target;
+        }
+
+        /**
+         * Документы поддерева в порядке обхода: сначала документ узла, затем документы дочерних узлов.
+         */
+        List<SyncNode> documents(List<SyncNode> result) {
+
+            if (target != null) {
+                result.add(this);
+            }
+            children.forEach(child -> child.documents(result));
+            return result;
+        }
+    }
+
+}
@@ -6,19 +6,31 @@ import picocli.CommandLine;
 import ru.kbakaras.cop.confluence.ConfluenceApi;
 import ru.kbakaras.cop.confluence.dto.Attachment;
 import ru.kbakaras.cop.confluence.dto.Content;
-import ru.kbakaras.cop.model.AttachmentDestination;
-import ru.kbakaras.cop.model.AttachmentSource;
+import ru.kbakaras.cop.confluence.dto.ContentVersion;
+import ru.kbakaras.cop.metrics.Metrics;
 import ru.kbakaras.cop.model.PageSource;
-import ru.kbakaras.sugar.utils.CollectionUpdater;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.net.URISyntaxException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.Set;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 @CommandLine.Command(
         name = "update",
@@ -39,6 +51,16 @@ public class UpdateCommand implements Callable<Integer> {
     @CommandLine.Option(names = {"-i", "--page-id"}, description = "Confluence's page id")
     private String pageId;
 
+    @CommandLine.Option(names = {"-j", "--jobs"}, description = "Number of documents converted and updated in parallel", defaultValue = "1")
+    private int jobs;
+
+    @CommandLine.Option(names = {"--force"}, description = "Update pages even if they are unchanged since the last update from the same list file", defaultValue = "false")
+    private boolean force;
+
+    @CommandLine.Option(names = {"--plan"}, arity = "0..1", paramLabel = "FILE", fallbackValue = "-",
+            description = "Write a JSON plan of the changes to the file (or to standard output) without changing anything in Confluence")
+    private String plan;
+
 
     @Override
     public Integer call() throws Exception {
@@ -51,102 +73,185 @@ public class UpdateCommand implements Callable<Integer> {
 
         MutableBoolean stop = new MutableBoolean(false);
 
-        Map<String, PageSource> newPages = parent.convertTargets(targets, null, log, stop);
+        PublishState state = listFile != null
+                ? PublishState.load(listFile, parent.attributes)
+                : null;
 
         try (ConfluenceApi api = parent.confluenceApi()) {
 
-            Map<String, Content> oldPages = new HashMap<>();
+            if (state != null && !force) {
+                targets = skipUnchanged(api, state, targets);
+                if (targets.length == 0) {
+                    log.info("All pages are unchanged since the last update, nothing to do");
+                    return 0;
+                }
+            }
 
-            // region Получение из Confluence страниц с текущим содержимым
-            for (UpdateTarget target : targets) {
-                try {
-                    log.info("Getting old content of '{}' for pageId={}", target.file, target.pageId);
-                    oldPages.put(target.pageId, api.getContentById(target.pageId));
+            Map<String, Content> oldPages = Collections.synchronizedMap(new HashMap<>());
+            Map<String, List<Attachment>> oldAttachments = Collections.synchronizedMap(new HashMap<>());
+            PagePipeline pipeline = new PagePipeline(jobs, log);
+
+            // Конвертация не зависит от страниц в Confluence, поэтому выполняется одновременно с их получением.
+            UpdateTarget[] batch = targets;
+            ExecutorService conversion = Executors.newSingleThreadExecutor();
+            Map<UpdateTarget, PageSource> newPages;
+            try {
+                Future<Map<UpdateTarget, PageSource>> converted = conversion.submit(
+                        () -> parent.convertTargets(batch, null, jobs, log, stop));
+
+                // region Получение из Confluence страниц с текущим содержимым
+                List<PagePipeline.PageOutcome> fetched = pipeline.execute(
+                        Arrays.asList(targets),
+                        target -> "pageId=" + target.pageId,
+                        target -> {
+                            try (Metrics.Scope ignored = Metrics.page(target.file)) {
+                                log.info("Getting old content of '{}' for pageId={}", target.file, target.pageId);
+                                oldPages.put(target.pageId, api.getContentById(target.pageId));
+
+                                if (plan != null) {
+                                    List<Attachment> attachments = new ArrayList<>();
+                                    api.findAttachmentsByContentId(target.pageId).forEach(attachments::add);
+                                    oldAttachments.put(target.pageId, attachments);
+                                }
+                                return "fetched";
+                            }
+                        });
+
+                fetched.stream()
+                        .filter(PagePipeline.PageOutcome::failed)
+                        .forEach(outcome -> {
+                            log.error("Unable to fetch old content from Confluence by {}", outcome.page);
+                            stop.setTrue();
+                        });
+                // endregion
 
-                } catch (Exception e) {
-                    log.error("Unable to fetch old content from Confluence by pageId={}", target.pageId, e);
-                    stop.setTrue();
-                }
+                newPages = converted.get();
+
+            } catch (ExecutionException e) {
+                throw new IllegalStateException(e.getCause());
+
+            } finally {
+                conversion.shutdownNow();
             }
-            // endregion
 
             if (stop.booleanValue()) {
                 throw new IllegalArgumentException();
             }
 
-            for (UpdateTarget target : targets) {
-
-                Content oldContent = oldPages.get(target.pageId);
-                PageSource pageSource = newPages.get(target.pageId);
-                log.info("Updating publication of page '{}' for pageId={}", pageSource.title, target.pageId);
+            if (plan != null) {
+                writePlan(api, targets, oldPages, oldAttachments, newPages);
+                return 0;
+            }
 
-                // region Обновление изображений (вложений)
-                List<AttachmentDestination> destinationImages = new ArrayList<>();
-                for (Attachment attachment : api.findAttachmentByContentId(oldContent.getId()).getResults()) {
-                    destinationImages.add(new AttachmentDestination(attachment, api.getAttachmentData(attachment)));
-                }
+            List<PagePipeline.PageOutcome> outcomes = pipeline.execute(
+                    Arrays.asList(targets),
+                    target -> "'" + newPages.get(target).title + "' (pageId=" + target.pageId + ")",
+                    target -> {
+                        try (Metrics.Scope ignored = Metrics.page(target.file)) {
+                            return updatePage(api, target, oldPages.get(target.pageId), newPages.get(target), state);
+                        }
+                    });
+
+            if (state != null) {
+                state.save();
+            }
 
-                new CollectionUpdater<AttachmentDestination, AttachmentSource, String>(id -> id.name, is -> is.name)
+            pipeline.report(outcomes, "Connections: " + api.getTransportStatistics());
+        }
 
-                        .check4Changes((id, is) -> {
-                            if (id.sha1.equals(is.sha1)) {
-                                is.setVersionAtSave(id.attachment.getVersion().getNumber());
-                                return false;
-                            }
-                            return true;
-                        })
-
-                        .createElement(is -> {
-                            try {
-                                log.info("  publishing new attachment '{}'", is.name);
-                                api.createAttachment(oldContent.getId(), is.name, is.mime, is.data);
-                                is.setVersionAtSave(1);
-                            } catch (URISyntaxException | IOException e) {
-                                throw new RuntimeException(e);
-                            }
-                        })
-
-                        .updateElement((id, is) -> {
-                            try {
-                                log.info("  updating attachment '{}'", is.name);
-                                api.updateAttachmentData(oldContent.getId(), id.attachment, is.data);
-                                is.setVersionAtSave(id.attachment.getVersion().getNumber() + 1);
-                            } catch (URISyntaxException | IOException e) {
-                                throw new RuntimeException(e);
-                            }
-                        })
+        return 0;
+    }
 
-                        .collection(destinationImages, pageSource.attachmentSourceList);
-                // endregion
+    /**
+     * Составляет и выводит план обновления. В Confluence при этом ничего не изменяется, а файл состояния
+     * пакетной публикации не сохраняется.
+     */
+    private void writePlan(ConfluenceApi api, UpdateTarget[] targets, Map<String, Content> oldPages,
+                           Map<String, List<Attachment>> oldAttachments, Map<UpdateTarget, PageSource> newPages)
+            throws InterruptedException, IOException {
+
+        PageWriter writer = new PageWriter(parent, api, log);
+        Map<UpdateTarget, UpdatePlan.Page> pagePlans = Collections.synchronizedMap(new HashMap<>());
+
+        PagePipeline pipeline = new PagePipeline(jobs, log);
+        List<PagePipeline.PageOutcome> outcomes = pipeline.execute(
+                Arrays.asList(targets),
+                target -> "'" + newPages.get(target).title + "' (pageId=" + target.pageId + ")",
+                target -> {
+                    try (Metrics.Scope ignored = Metrics.page(target.file)) {
+                        UpdatePlan.Page pagePlan = writer.planUpdate(
+                                oldPages.get(target.pageId), oldAttachments.get(target.pageId), newPages.get(target), target.file);
+                        pagePlans.put(target, pagePlan);
+                        return pagePlan.toString();
+                    }
+                });
+
+        UpdatePlan updatePlan = new UpdatePlan();
+        Arrays.stream(targets)
+                .map(pagePlans::get)
+                .filter(Objects::nonNull)
+                .forEach(updatePlan.getPages()::add);
+
+        pipeline.report(outcomes,
+                updatePlan.getChangedPages() + " of " + targets.length + " page(s) would be changed",
+                "Connections: " + api.getTransportStatistics());
+
+        if ("-".equals(plan)) {
+            updatePlan.writeTo(System.out);
+            System.out.println();
+        } else {
+            try (OutputStream out = Files.newOutputStream(Paths.get(plan))) {
+                updatePlan.writeTo(out);
+            }
+            log.info("Update plan is written to '{}'", plan);
+        }
+    }
 
-                // region Обновление основного содержимого страницы
-                if (!pageSource.title.equals(oldContent.getTitle())
-                        || pageSource.differentContent(oldContent.getBody().getStorage().getValue())) {
-                    log.info("  updating page content");
-                    Content content = new Content();
-                    content.setVersion(oldContent.getVersion());
-                    content.getVersion().setNumber(content.getVersion().getNumber() + 1);
-                    parent.setContentValue(content, pageSource, oldContent.getSpace().getKey(), null);
+    /**
+     * Исключает из пакета страницы, исходные файлы которых не изменились с момента последнего обновления,
+     * а версия в Confluence осталась той же, что была получена при этом обновлении.
+     */
+    private UpdateTarget[] skipUnchanged(ConfluenceApi api, PublishState state, UpdateTarget[] targets)
+            throws InterruptedException {
+
+        Set<UpdateTarget> unchanged = Collections.synchronizedSet(new HashSet<>());
+
+        new PagePipeline(jobs, log).execute(
+                Arrays.asList(targets),
+                target -> "pageId=" + target.pageId,
+                target -> {
+                    Optional<Integer> version = state.unchangedVersion(target);
+                    if (version.isPresent()) {
+                        ContentVersion current = api.getContentVersion(target.pageId);
+                        if (current != null && current.getNumber() == version.get()) {
+                            log.info("Skipping unchanged '{}' for pageId={}", target.file, target.pageId);
+                            unchanged.add(target);
+                        }
+                    }
+                    return "checked";
+                });
 
-                    content = api.updateContent(oldContent.getId(), content);
+        if (!unchanged.isEmpty()) {
+            log.info("{} of {} page(s) are unchanged since the last update (see {}), use --force to update them anyway",
+                    unchanged.size(), targets.length, state.getStateFile());
+        }
 
-                    if (pageSource.differentContent(content.getBody().getStorage().getValue())) {
-                        log.warn("  SHA1 of updated content differs from converted, check converter");
-                    }
+        return Arrays.stream(targets)
+                .filter(target -> !unchanged.contains(target))
+                .toArray(UpdateTarget[]::new);
+    }
 
-                    if (!pageSource.title.equals(oldContent.getTitle())) {
-                        log.info("  RENAMED: {}", oldContent.getTitle());
-                        log.info("  -------> {}", content.getTitle());
-                    }
-                }
-                // endregion
+    private String updatePage(ConfluenceApi api, UpdateTarget target, Content oldContent, PageSource pageSource,
+                              PublishState state) throws URISyntaxException, IOException {
 
-                api.setDefaultAppearance(oldContent);
-            }
+        log.info("Updating publication of page '{}' for pageId={}", pageSource.title, target.pageId);
+        PageWriter.PageChanges changes = new PageWriter(parent, api, log).updatePage(oldContent, pageSource, null);
 
+        if (state != null) {
+            state.record(target, pageSource, changes.publishedVersion);
         }
 
-        return 0;
+        return changes.toString();
     }
 
 }
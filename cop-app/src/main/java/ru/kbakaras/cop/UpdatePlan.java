@@ -0,0 +1,113 @@
+package ru.kbakaras.cop;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import lombok.Data;
+import ru.kbakaras.sugar.lazy.Lazy;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * План обновления страниц: изменения, которые внесла бы команда обновления, если бы была выполнена.
+ * Формируется в режиме {@code --plan} только по запросам чтения и выводится в формате JSON.
+ */
+@Data
+class UpdatePlan {
+
+    private static final Lazy<ObjectMapper> JSON_MAPPER = Lazy
+            .of(() -> new ObjectMapper()
+                    .enable(SerializationFeature.INDENT_OUTPUT)
+                    .configure(JsonGenerator.Feature.AUTO_CLOSE_TARGET, false));
+
+    private final List<Page> pages = new ArrayList<>();
+
+
+    /**
+     * Количество страниц, которые были бы изменены.
+     */
+    public long getChangedPages() {
+        return pages.stream().filter(Page::hasChanges).count();
+    }
+
+    /**
+     * Записывает план в поток в формате JSON. Поток после записи не закрывается.
+     */
+    void writeTo(OutputStream out) throws IOException {
+        JSON_MAPPER.get().writeValue(out, this);
+    }
+
+
+    /**
+     * Изменения одной страницы.
+     */
+    @Data
+    static class Page {
+
+        private final String file;
+        private final String pageId;
+        private final String title;
+        private final int version;
+
+        /**
+         * Прежний заголовок страницы, если страница была бы переименована.
+         */
+        @JsonInclude(JsonInclude.Include.NON_NULL)
+        private String renamedFrom;
+
+        private boolean contentChanged;
+
+        /**
+         * Место первого различия содержимого, если содержимое изменилось.
+         */
+        @JsonInclude(JsonInclude.Include.NON_NULL)
+        private String contentDifference;
+
+        /**
+         * SHA1 содержимого страницы, которое было бы опубликовано.
+         */
+        private String contentDigest;
+
+        private final List<String> createdAttachments = new ArrayList<>();
+        private final List<String> updatedAttachments = new ArrayList<>();
+
+        /**
+         * Вложения страницы, которым не соответствует ни один файл документа. Команда обновления
+         * их не удаляет, они перечисляются для сведения.
+         */
+        private final List<String> orphanedAttachments = new ArrayList<>();
+
+        boolean hasChanges() {
+            return contentChanged || renamedFrom != null
+                    || !createdAttachments.isEmpty() || !updatedAttachments.isEmpty();
+        }
+
+        @Override
+        public String toString() {
+
+            List<String> changes = new ArrayList<>();
+            if (contentChanged) {
+                changes.add("content");
+            }
+            if (renamedFrom != null) {
+                changes.add("renamed from '" + renamedFrom + "'");
+            }
+            if (!createdAttachments.isEmpty()) {
+                changes.add(createdAttachments.size() + " new attachment(s)");
+            }
+            if (!updatedAttachments.isEmpty()) {
+                changes.add(updatedAttachments.size() + " updated attachment(s)");
+            }
+            if (!orphanedAttachments.isEmpty()) {
+                changes.add(orphanedAttachments.size() + " orphaned attachment(s)");
+            }
+
+            return changes.isEmpty() ? "no changes planned" : "would change " + String.join(", ", changes);
+        }
+    }
+
+}
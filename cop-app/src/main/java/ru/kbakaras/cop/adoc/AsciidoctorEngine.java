@@ -0,0 +1,71 @@
+package ru.kbakaras.cop.adoc;
+
+import lombok.extern.slf4j.Slf4j;
+import org.asciidoctor.Asciidoctor;
+import ru.kbakaras.cop.metrics.Metrics;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Пул управляемых экземпляров Asciidoctor. Запуск JRuby и загрузка библиотек обходятся дорого, поэтому
+ * экземпляры создаются по требованию и используются повторно для конвертации всех документов пакета.
+ * <p>
+ * Экземпляр JRuby нельзя свободно разделять между потоками, поэтому каждый поток получает экземпляр
+ * в монопольное пользование через {@link #acquire()} и возвращает его в пул через {@link #release(Asciidoctor)}.
+ * Таким образом, экземпляров создаётся не больше, чем потоков, одновременно выполняющих конвертацию.
+ * Освобождаются экземпляры при закрытии пула.
+ */
+@Slf4j
+public class AsciidoctorEngine implements Closeable {
+
+    private final BlockingQueue<Asciidoctor> idle = new LinkedBlockingQueue<>();
+    private final List<Asciidoctor> created = new ArrayList<>();
+
+
+    public Asciidoctor acquire() {
+
+        Asciidoctor asciidoctor = idle.poll();
+        return asciidoctor != null ? asciidoctor : create();
+    }
+
+    public void release(Asciidoctor asciidoctor) {
+        idle.offer(asciidoctor);
+    }
+
+
+    private Asciidoctor create() {
+
+        long start = System.nanoTime();
+
+        Asciidoctor asciidoctor = Asciidoctor.Factory.create();
+        asciidoctor.javaConverterRegistry().register(ConfluenceConverter.class);
+        asciidoctor.requireLibrary("asciidoctor-diagram");
+
+        Metrics.record("asciidoctor.startup", System.nanoTime() - start);
+
+        synchronized (created) {
+            created.add(asciidoctor);
+            log.info("Asciidoctor instance #{} started in {} ms",
+                    created.size(), TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        }
+
+        return asciidoctor;
+    }
+
+
+    @Override
+    public void close() {
+
+        synchronized (created) {
+            created.forEach(Asciidoctor::shutdown);
+            created.clear();
+            idle.clear();
+        }
+    }
+
+}
@@ -2,7 +2,6 @@ package ru.kbakaras.cop.adoc;
 
 import lombok.extern.slf4j.Slf4j;
 import org.asciidoctor.ast.Block;
-import org.asciidoctor.ast.Column;
 import org.asciidoctor.ast.ContentNode;
 import org.asciidoctor.ast.DescriptionList;
 import org.asciidoctor.ast.DescriptionListEntry;
@@ -15,30 +14,92 @@ import org.asciidoctor.ast.StructuralNode;
 import org.asciidoctor.ast.Table;
 import org.asciidoctor.converter.ConverterFor;
 import org.asciidoctor.converter.StringConverter;
-import org.jruby.RubyArray;
-import ru.kbakaras.sugar.utils.StringUtils;
-import ru.kbakaras.sugar.utils.UUIDComposer;
+import org.asciidoctor.jruby.internal.JRubyRuntimeContext;
+import ru.kbakaras.cop.metrics.Metrics;
 
 import java.nio.file.Path;
-import java.util.Collection;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Locale;
 import java.util.Map;
-import java.util.Objects;
 import java.util.Optional;
-import java.util.Random;
 import java.util.UUID;
-import java.util.function.Supplier;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
-import java.util.stream.Collectors;
-import java.util.stream.Stream;
 
+/**
+ * Конвертер asciidoctor в формат хранения Confluence.
+ * <p>
+ * Разметка каждого узла выводится в буфер, взятый из пула буферов конвертера (см. {@link #convert}),
+ * вспомогательными методами {@code append...}. Промежуточные строки создаются только там, где
+ * без них не обойтись: для содержимого вложенных узлов, которое Asciidoctor возвращает строкой,
+ * и для содержимого, по которому вычисляется идентификатор макроса.
+ * <p>
+ * Идентификаторы макросов выдаются {@link MacroIds} по виду макроса и устойчивому ключу: явному
+ * идентификатору блока, заголовку или содержимому.
+ * <p>
+ * Содержимое составных узлов (документа, рубрик, разворачиваемых блоков, примечаний, элементов
+ * перечней) выводится обходом дерева блоков из Java: дочерние блоки берутся методом
+ * {@code getBlocks()} и выводятся в тот же буфер, что и родительский узел. Asciidoctor вызывается
+ * только для подстановок в тексте (содержимое абзацев, текст элементов перечней, ячейки таблиц).
+ * Атрибут документа {@value #CONVERT_MODE_ATTRIBUTE}, равный {@value #CONVERT_MODE_RUBY}, возвращает
+ * прежний порядок, при котором содержимое составных узлов собирает Asciidoctor, вызывая конвертер
+ * для каждого дочернего блока. Количество переходов между Ruby и Java в обоих случаях учитывается
+ * в метриках {@code convert.callbacks} (вызовы конвертера из Ruby) и {@code convert.ruby-calls}
+ * (обращения конвертера к Ruby за содержимым).
+ */
 @Slf4j
 @ConverterFor("confluence")
 public class ConfluenceConverter extends StringConverter {
 
-    private final String LINE_SEPARATOR = "\n";
     private static final Pattern PATTERN_WIDTH = Pattern.compile("(\\d+)%?");
 
+    private static final String BR = "<br/>";
+
+    /**
+     * Буферы большей ёмкости в пул не возвращаются, чтобы не удерживать память после больших таблиц.
+     */
+    private static final int MAX_POOLED_CAPACITY = 1 << 20;
+
+    static final String CONVERT_MODE_ATTRIBUTE = "cop-convert-mode";
+    static final String CONVERT_MODE_RUBY = "ruby";
+
+
+    /**
+     * Буферы для вывода разметки узлов. Конвертация вложенных узлов выполняется рекурсивно, во время
+     * вывода родительского узла, поэтому каждому уровню вложенности нужен свой буфер. Освобождённые
+     * буферы используются повторно вместе с выделенной под них памятью.
+     */
+    private final Deque<StringBuilder> builders = new ArrayDeque<>();
+
+    private final MacroIds macroIds = new MacroIds();
+
+    /**
+     * Переходы между Ruby и Java, накопленные с начала конвертации документа.
+     */
+    private long callbacks;
+    private long rubyCalls;
+
+    /**
+     * Контекст преобразования ссылок, один на экземпляр конвертера, то есть на корневой документ.
+     */
+    private final LinkContext linkContext = new LinkContext(macroIds);
+
+    /**
+     * Вывод таблиц, один на экземпляр конвертера, то есть на корневой документ.
+     */
+    private TableRenderer tableRenderer;
+
+    /**
+     * Изменения атрибутов документа, одни на экземпляр конвертера, то есть на корневой документ.
+     */
+    private DocumentAttributes documentAttributes;
+
+    /**
+     * Режим конвертации, один на экземпляр конвертера, то есть на корневой документ.
+     */
+    private Boolean treeWalk;
+
 
     public ConfluenceConverter(String backend, Map<String, Object> opts) {
         super(backend, opts);
@@ -50,301 +111,360 @@ public class ConfluenceConverter extends StringConverter {
         if (transform == null) {
             transform = node.getNodeName();
         }
+        callbacks++;
+
+        StringBuilder out = acquireBuilder();
+        try {
+            return render(node, transform, out) ? out.toString() : null;
+        } finally {
+            releaseBuilder(out);
+        }
+    }
+
+    /**
+     * Выводит разметку узла.
+     *
+     * @return {@code false}, если узел не поддерживается и пропущен
+     */
+    private boolean render(ContentNode node, String transform, StringBuilder out) {
 
         if (transform.equals("inline_anchor")) {
             String anchorId = node.getId();
             if (anchorId != null) {
-                return anchor(anchorId);
+                appendAnchor(out, anchorId);
+                return true;
             }
         }
 
         if (node instanceof Document) {
             Document document = (Document) node;
 
-            StringBuilder result = new StringBuilder();
-
-            Optional.ofNullable(document.getAttribute("disclaimer"))
-                    .map(Object::toString)
-                    .map(ConfluenceConverter::disclaimer)
-                    .ifPresent(result::append);
+            Object disclaimer = document.getAttribute("disclaimer");
+            if (disclaimer != null) {
+                appendDisclaimer(out, disclaimer.toString());
+            }
 
             if (document.hasAttribute("toc")) {
-                result.append(toc(document.getTitle()));
+                appendToc(out, document.getTitle());
             }
 
-            return result.append(document.getContent()).toString();
+            appendContent(out, document);
+            flushCounters();
 
         } else if (node instanceof Section) {
             Section section = (Section) node;
-            String level = Integer.toString(section.getLevel());
+            int level = section.getLevel();
 
-            StringBuilder result = new StringBuilder("<h" + level + ">");
+            out.append("<h").append(level).append('>');
             if (node.getId() != null) {
-                result.append(anchor(node.getId()));
+                appendAnchor(out, node.getId());
             }
-
-            return result
-                    .append(formatSectionTitle(section))
-                    .append("</h").append(level).append(">")
-                    .append(LINE_SEPARATOR)
-                    .append(section.getContent())
-                    .toString();
+            appendSectionTitle(out, section);
+            out.append("</h").append(level).append(">\n");
+            appendContent(out, section);
 
         } else if (node instanceof PhraseNode) {
             PhraseNode phrase = (PhraseNode) node;
 
             switch (phrase.getType()) {
                 case "emphasis":
-                    return "<i>" + phrase.getText() + "</i>";
+                    out.append("<i>").append(phrase.getText()).append("</i>");
+                    break;
                 case "strong":
-                    return "<b>" + phrase.getText() + "</b>";
+                    out.append("<b>").append(phrase.getText()).append("</b>");
+                    break;
                 case "monospaced":
-                    return "<code>" + phrase.getText() + "</code>";
+                    out.append("<code>").append(phrase.getText()).append("</code>");
+                    break;
                 case "link":
                 case "xref":
-                    return link(phrase);
+                    out.append(link(phrase));
+                    break;
                 case "line":
-                    return phrase.getText() + "<br/>";
+                    out.append(phrase.getText()).append(BR);
+                    break;
                 default:
-                    return phrase.getText();
+                    out.append(phrase.getText());
             }
 
         } else if (node instanceof Table) {
-            Table table = (Table) node;
-
-            StringBuilder tableBuilder = new StringBuilder();
-            tableBuilder.append("<table class='wrapped relative-table'");
-
-            Optional<Boolean> wide = Optional
-                    .ofNullable((String) table.getAttribute("wide"))
-                    .map(Boolean::parseBoolean)
-                    .filter(value -> value);
-
-            wide.ifPresent(value -> tableBuilder.append("data-layout='wide'"));
-
-            Optional.ofNullable(table.getAttribute("width"))
-                    .map(ConfluenceConverter::formatWidth)
-                    .map(width -> String.format(" style='%s'", width))
-                    .ifPresent(tableBuilder::append);
-            tableBuilder.append(">");
-
-            tableBuilder.append("<colgroup>");
-            columnStyles(table.getColumns(), wide.map(value -> 960).orElse(680))
-                    .forEach(style -> tableBuilder.append("<col style='").append(style).append("'></col>"));
-            tableBuilder.append("</colgroup>");
-
-            tableBuilder.append("<tbody>\n");
-
-            table.getHeader().forEach(row -> {
-                tableBuilder.append("<tr>\n");
-                row.getCells().forEach(cell -> {
-                    String style = cell.getHorizontalAlignment() != Table.HorizontalAlignment.LEFT
-                            ? " style='text-align: " + cell.getHorizontalAlignment().name().toLowerCase() + ";'"
-                            : "";
-                    tableBuilder.append("<th").append(style).append(">");
-                    tableBuilder.append(cell.getText());
-                    tableBuilder.append("</th>\n");
-                });
-                tableBuilder.append("</tr>\n");
-            });
-
-            table.getBody().forEach(row -> {
-                tableBuilder.append("<tr>\n");
-                row.getCells().forEach(cell -> {
-                    String span = StringUtils.join(" ",
-                            cell.getColspan() > 0 ? " colspan='" + cell.getColspan() + "'" : "",
-                            cell.getRowspan() > 0 ? " rowspan='" + cell.getRowspan() + "'" : "");
-                    String style = cell.getHorizontalAlignment() != Table.HorizontalAlignment.LEFT
-                            ? " style='text-align: " + cell.getHorizontalAlignment().name().toLowerCase() + ";'"
-                            : "";
-                    tableBuilder.append("<td").append(span).append(style).append(">");
-                    if ("asciidoc".equals(cell.getStyle())) {
-                        tableBuilder.append(cell.getContent());
-                    } else {
-                        Object content = cell.getContent();
-                        if (content instanceof RubyArray) {
-                            for (Object el : (RubyArray<?>) content) {
-                                if (el instanceof String) {
-                                    tableBuilder.append(formatParagraph((String) el));
-                                }
-                            }
-                        }
-                    }
-                    tableBuilder.append("</td>\n");
-                });
-                tableBuilder.append("</tr>\n");
-            });
-
-            tableBuilder.append("\n</tbody>");
-            tableBuilder.append("\n</table>\n");
-
-            return tableBuilder.toString();
+            // Ячейки asciidoc конвертируются этим же конвертером как вложенные документы, которые
+            // сбрасывают счётчики, поэтому количество вызовов добавляется после вывода таблицы.
+            int calls = tableRenderer(node).render(out, (Table) node);
+            rubyCalls += calls;
 
         } else if (transform.equals("paragraph")) {
-            StructuralNode block = (StructuralNode) node;
-            return formatParagraph(block.getContent().toString());
+            appendParagraph(out, content((StructuralNode) node));
 
         } else if (transform.equals("preamble")) {
-
-            return ((StructuralNode) node).getContent().toString();
+            appendContent(out, (StructuralNode) node);
 
         } else if ("example".equals(transform)) {
-
-            Block block = (Block) node;
-            return expandable((String) block.getAttribute("title"), block.getContent().toString());
+            appendExpandable(out, (Block) node);
 
         } else if ("admonition".equals(transform)) {
-            Block block = (Block) node;
-
-            String type = Optional
-                    .ofNullable((String) block.getAttribute("style"))
-                    .map(String::toLowerCase)
-                    .map(value -> {
-                        switch (value) {
-                            case "note": return "info";
-                            case "important": return "note";
-                            case "caution": return "warning";
-                            default: return value;
-                        }
-                    })
-                    .orElse("info");
-
-            String content = block.getContentModel().equals("compound")
-                    ? block.getContent().toString()
-                    : formatParagraph(block.getContent().toString());
-            String macroId = UUID.nameUUIDFromBytes(content.getBytes()).toString();
-
-            return String.format("<ac:structured-macro ac:name='%s' ac:schema-version='1' ac:macro-id='%s'>" +
-                    "<ac:rich-text-body>%s</ac:rich-text-body>" +
-                    "</ac:structured-macro>", type, macroId, content);
+            appendAdmonition(out, (Block) node);
 
         } else if (transform.equals("image")) {
-            Block block = (Block) node;
+            appendImage(out, (Block) node);
 
-            StringBuilder imageBuilder = new StringBuilder();
+        } else if (transform.equals("dlist")) {
 
-            imageBuilder
-                    .append("<p>")
-                    .append("<ac:image");
+            for (DescriptionListEntry entry : ((DescriptionList) node).getItems()) {
+                out.append("<p><strong>");
+                boolean first = true;
+                for (ListItem term : entry.getTerms()) {
+                    if (!first) {
+                        out.append(BR);
+                    }
+                    out.append(text(term));
+                    first = false;
+                }
+                out.append("</strong></p>");
+                appendItem(out, entry.getDescription());
+            }
 
-            Optional.ofNullable(block.getAttribute("align"))
-                    .or(() -> Optional.ofNullable(block.getAttribute("float")))
-                    .ifPresent(align -> imageBuilder.append(" ac:align='").append(align).append("'"));
+        } else if (transform.equals("ulist")) {
+            appendList(out, (List) node, "ul");
 
-            Optional.ofNullable(block.getAttribute("float"))
-                    .map(value -> "wrap-" + value)
-                    .ifPresent(layout -> imageBuilder.append(" ac:layout='").append(layout).append("'"));
+        } else if (transform.equals("olist") || transform.equals("colist")) {
+            appendList(out, (List) node, "ol");
 
-            Optional.ofNullable(block.getAttribute("width"))
-                    .ifPresent(width -> imageBuilder.append(" ac:width='").append(width).append("'"));
+        } else if (node instanceof ListItem) {
 
-            String path = Stream.of(block.getAttribute("imagesdir"), block.getAttribute("target"))
-                    .filter(Objects::nonNull)
-                    .map(Object::toString)
-                    .reduce((str1, str2) -> Path.of(str1, str2).toString())
-                    .orElse(null);
+            ListItem item = (ListItem) node;
 
-            imageBuilder
-                    .append(">")
+            if (item.hasText()) {
+                appendParagraph(out, text(item));
+                appendBlocks(out, item, "");
 
-                    .append("<ri:attachment ri:filename='").append(path).append("'/>")
-                    .append("</ac:image>")
-                    .append("</p>");
+            } else {
+                appendContent(out, item);
+            }
 
-            return imageBuilder.toString();
+        } else if (transform.equals("listing")) {
+            appendListing(out, (Block) node);
 
-        } else if (transform.equals("dlist")) {
+        } else {
+            log.warn("Node '{}: {}' with transform '{}' ignored",
+                    node.getClass().getSimpleName(), node.getNodeName(), transform);
+            return false;
+        }
+
+        return true;
+    }
+
+
+    // region Буферы
+
+    private StringBuilder acquireBuilder() {
+
+        StringBuilder builder = builders.poll();
+        return builder != null ? builder : new StringBuilder(256);
+    }
+
+    private void releaseBuilder(StringBuilder builder) {
+
+        if (builder.capacity() <= MAX_POOLED_CAPACITY) {
+            builder.setLength(0);
+            builders.push(builder);
+        }
+    }
+
+    // endregion
+
+
+    // region Обход дерева блоков
 
-            DescriptionList dlist = (DescriptionList) node;
+    /**
+     * Выводит содержимое составного узла: дочерние блоки, разделённые переводами строк, как это
+     * делает {@code AbstractBlock#content}.
+     */
+    private void appendContent(StringBuilder out, StructuralNode node) {
 
-            StringBuilder builder = new StringBuilder();
-            for (DescriptionListEntry entry : dlist.getItems()) {
-                builder.append("<p>")
-                        .append("<strong>")
-                        .append(entry.getTerms().stream().map(ListItem::getText).collect(Collectors.joining("<br/>")))
-                        .append("</strong>")
-                        .append("</p>")
-                        .append(entry.getDescription().convert());
+        if (!treeWalk(node)) {
+            out.append(content(node));
+            return;
+        }
+
+        if (node instanceof Document) {
+            documentAttributes(node).removeTitle((Document) node);
+        }
+        appendBlocks(out, node, "\n");
+    }
+
+    private String formatContent(StructuralNode node) {
+
+        StringBuilder out = acquireBuilder();
+        try {
+            appendContent(out, node);
+            return out.toString();
+        } finally {
+            releaseBuilder(out);
+        }
+    }
+
+    /**
+     * Выводит дочерние блоки узла, применяя перед каждым из них атрибуты, заданные в документе
+     * перед этим блоком (как {@code AbstractBlock#convert}).
+     */
+    private void appendBlocks(StringBuilder out, StructuralNode parent, String separator) {
+
+        java.util.List<StructuralNode> blocks = parent.getBlocks();
+
+        if (!treeWalk(parent)) {
+            for (StructuralNode block : blocks) {
+                rubyCalls++;
+                out.append(block.convert());
             }
-            return builder.toString();
+            return;
+        }
 
-        } else if (transform.equals("ulist")) {
+        int[] entries = blocks.isEmpty() ? new int[0] : documentAttributes(parent).entries(parent);
+        int entry = 0;
 
-            List list = (List) node;
+        for (int i = 0; i < blocks.size(); i++) {
+            if (i > 0) {
+                out.append(separator);
+            }
 
-            StringBuilder builder = new StringBuilder();
-            builder.append("<ul>");
-            for (StructuralNode listItem : list.getItems()) {
-                builder.append("<li>");
-                builder.append(listItem.convert());
-                builder.append("</li>");
+            StructuralNode block = blocks.get(i);
+            if (entry < entries.length && entries[entry] == i) {
+                documentAttributes(parent).playback(block);
+                entry++;
             }
-            builder.append("</ul>");
+            render(block, block.getNodeName(), out);
+        }
+    }
 
-            return builder.toString();
+    /**
+     * Выводит элемент перечня. Перед элементами перечней атрибуты не задаются, поэтому применять их
+     * здесь не нужно.
+     */
+    private void appendItem(StringBuilder out, StructuralNode item) {
 
-        } else if (transform.equals("olist") || transform.equals("colist")) {
+        if (treeWalk(item)) {
+            render(item, item.getNodeName(), out);
+        } else {
+            rubyCalls++;
+            out.append(item.convert());
+        }
+    }
 
-            List list = (List) node;
+    private String content(StructuralNode node) {
+        rubyCalls++;
+        return node.getContent().toString();
+    }
 
-            StringBuilder builder = new StringBuilder();
-            builder.append("<ol>");
-            for (StructuralNode listItem : list.getItems()) {
-                builder.append("<li>");
-                builder.append(listItem.convert());
-                builder.append("</li>");
-            }
-            builder.append("</ol>");
+    private String text(ListItem item) {
+        rubyCalls++;
+        return item.getText();
+    }
 
-            return builder.toString();
+    /**
+     * Учитывает переходы между Ruby и Java в метриках. Вызывается по окончании конвертации документа.
+     */
+    private void flushCounters() {
 
-        } else if (node instanceof ListItem) {
+        Metrics.count("convert.callbacks", callbacks);
+        Metrics.count("convert.ruby-calls", rubyCalls);
+        callbacks = 0;
+        rubyCalls = 0;
+    }
 
-            ListItem item = (ListItem) node;
+    // endregion
 
-            if (item.hasText()) {
-                StringBuilder builder = new StringBuilder(formatParagraph(item.getText()));
-                for (StructuralNode itemNode : item.getBlocks()) {
-                    builder.append(itemNode.convert());
-                }
 
-                return builder.toString();
+    // region Блоки
 
-            } else {
+    private void appendAdmonition(StringBuilder out, Block block) {
 
-                return item.getContent().toString();
+        String style = (String) block.getAttribute("style");
+        String type = "info";
+        if (style != null) {
+            switch (style.toLowerCase(Locale.ROOT)) {
+                case "note": type = "info"; break;
+                case "important": type = "note"; break;
+                case "caution": type = "warning"; break;
+                default: type = style.toLowerCase(Locale.ROOT);
             }
+        }
 
-        } else if (transform.equals("listing")) {
+        String content = block.getContentModel().equals("compound")
+                ? formatContent(block)
+                : formatParagraph(content(block));
+        appendRichTextMacro(out, type, macroIds.next(type, macroKey(block, content)), content);
+    }
+
+    private static void appendImage(StringBuilder out, Block block) {
 
-            Block block = (Block) node;
-            StringBuilder builder = new StringBuilder();
+        Object align = block.getAttribute("align");
+        Object floating = block.getAttribute("float");
+        Object width = block.getAttribute("width");
 
-            builder.append(String.format(
-                    "<ac:structured-macro ac:name='code' ac:schema-version='1' ac:macro-id='%s'>",
-                    UUID.nameUUIDFromBytes(block.getSource().getBytes())));
+        out.append("<p><ac:image");
 
-            Optional.ofNullable((String) block.getAttribute("language"))
-                    .map(String::toLowerCase)
-                    .map(value -> String.format("<ac:parameter ac:name='language'>%s</ac:parameter>", value))
-                    .ifPresent(builder::append);
+        if (align != null || floating != null) {
+            out.append(" ac:align='").append(align != null ? align : floating).append('\'');
+        }
+        if (floating != null) {
+            out.append(" ac:layout='wrap-").append(floating).append('\'');
+        }
+        if (width != null) {
+            out.append(" ac:width='").append(width).append('\'');
+        }
 
-            builder.append("<ac:plain-text-body>");
-            builder.append("<![CDATA[").append(replaceCalloutSymbols(block.getSource())).append("]]>");
-            builder.append("</ac:plain-text-body>");
+        Object imagesdir = block.getAttribute("imagesdir");
+        Object target = block.getAttribute("target");
+        String path;
+        if (imagesdir != null && target != null) {
+            path = Path.of(imagesdir.toString(), target.toString()).toString();
+        } else if (imagesdir != null) {
+            path = imagesdir.toString();
+        } else {
+            path = target != null ? target.toString() : null;
+        }
 
-            builder.append("</ac:structured-macro>");
+        out.append('>')
+                .append("<ri:attachment ri:filename='").append(path).append("'/>")
+                .append("</ac:image></p>");
+    }
 
-            return builder.toString();
+    private void appendList(StringBuilder out, List list, String tag) {
 
-        } else {
-            log.warn("Node '{}: {}' with transform '{}' ignored",
-                    node.getClass().getSimpleName(), node.getNodeName(), transform);
+        out.append('<').append(tag).append('>');
+        for (StructuralNode listItem : list.getItems()) {
+            out.append("<li>");
+            appendItem(out, listItem);
+            out.append("</li>");
         }
+        out.append("</").append(tag).append('>');
+    }
 
-        return null;
+    private void appendListing(StringBuilder out, Block block) {
+
+        String source = block.getSource();
+
+        out.append("<ac:structured-macro ac:name='code' ac:schema-version='1' ac:macro-id='")
+                .append(macroIds.next("code", macroKey(block, source)))
+                .append("'>");
+
+        String language = (String) block.getAttribute("language");
+        if (language != null) {
+            out.append("<ac:parameter ac:name='language'>")
+                    .append(language.toLowerCase(Locale.ROOT))
+                    .append("</ac:parameter>");
+        }
+
+        out.append("<ac:plain-text-body><![CDATA[");
+        appendCalloutSymbols(out, source);
+        out.append("]]></ac:plain-text-body>");
+
+        out.append("</ac:structured-macro>");
     }
 
+    // endregion
+
 
     private static final Pattern PATTERN_CALLOUTS = Pattern.compile("(<\\d+>\\s*)+$", Pattern.MULTILINE);
     private static final Pattern PATTERN_CALLOUT = Pattern.compile("<(\\d+)>");
@@ -372,108 +492,149 @@ public class ConfluenceConverter extends StringConverter {
             Map.entry("20", "⓴")
     );
 
-    private String replaceCalloutSymbols(String source) {
-
-        StringBuilder result = new StringBuilder();
-        Matcher matcher = PATTERN_CALLOUTS.matcher(source);
-
-        while (matcher.find()) {
-            String replacement = PATTERN_CALLOUT
-                    .matcher(matcher.group())
-                    .replaceAll(match -> CALLOUTS.getOrDefault(match.group(1), "🯄"));
-            matcher.appendReplacement(result, replacement);
+    /**
+     * Выводит исходный код, заменяя маркеры выносок в концах строк символами выносок.
+     */
+    private static void appendCalloutSymbols(StringBuilder out, String source) {
+
+        Matcher callouts = PATTERN_CALLOUTS.matcher(source);
+        Matcher callout = PATTERN_CALLOUT.matcher(source);
+        int position = 0;
+
+        while (callouts.find()) {
+            callout.region(callouts.start(), callouts.end());
+            while (callout.find()) {
+                out.append(source, position, callout.start())
+                        .append(CALLOUTS.getOrDefault(callout.group(1), "🯄"));
+                position = callout.end();
+            }
         }
 
-        matcher.appendTail(result);
-        return result.toString();
+        out.append(source, position, source.length());
     }
 
-    private String formatParagraph(String text) {
-
-        return "<p>" + text
-                .replaceAll(LINE_SEPARATOR, " ")
-                .replaceAll("\\s*<br/>\\s*", "<br/>")
-                .trim()
-                + "</p>\n";
-    }
+    /**
+     * Выводит текст абзаца: переводы строк заменяются пробелами, пробельные символы вокруг
+     * {@code <br/>} удаляются, а по краям текста отбрасываются.
+     */
+    static void appendParagraph(StringBuilder out, String text) {
 
-    private String formatSectionTitle(Section section) {
+        out.append("<p>");
+        int start = out.length();
 
-        String title = null;
+        int length = text.length();
+        int i = 0;
+        while (i < length) {
+            char c = text.charAt(i);
 
-        boolean needsNumber = section.isNumbered() && Optional
-                .ofNullable((String) section.getDocument().getAttribute("sectnumlevels"))
-                .map(Integer::parseInt)
-                .filter(maxLevel -> section.getLevel() > maxLevel)
-                .isEmpty();
+            if (c == '<' && text.startsWith(BR, i)) {
+                int end = out.length();
+                while (end > start && isWhitespace(out.charAt(end - 1))) {
+                    end--;
+                }
+                out.setLength(end);
+                out.append(BR);
 
-        if (needsNumber) {
-            Section current = section;
+                i += BR.length();
+                while (i < length && isWhitespace(text.charAt(i))) {
+                    i++;
+                }
 
-            do {
-                title = Stream.of(current.getNumeral(), title)
-                        .filter(org.apache.commons.lang3.StringUtils::isNotEmpty)
-                        .collect(Collectors.joining("."));
+            } else {
+                out.append(c == '\n' ? ' ' : c);
+                i++;
+            }
+        }
 
-                current = current.getParent() instanceof Section
-                        ? (Section) current.getParent()
-                        : null;
+        // Отбрасывание краёв как в String.trim(): удаляются все символы не старше пробела.
+        int end = out.length();
+        while (end > start && out.charAt(end - 1) <= ' ') {
+            end--;
+        }
+        out.setLength(end);
 
-            } while (current != null);
+        int first = start;
+        while (first < end && out.charAt(first) <= ' ') {
+            first++;
+        }
+        if (first > start) {
+            out.delete(start, first);
         }
 
-        return Stream.of(title, section.getTitle())
-                .filter(org.apache.commons.lang3.StringUtils::isNotEmpty)
-                .collect(Collectors.joining(". "));
+        out.append("</p>\n");
     }
 
-    private Stream<String> columnStyles(Collection<Column> columns, int tableWidth) {
+    private String formatParagraph(String text) {
 
-        int sum = columns.stream().mapToInt(Column::getWidth).sum();
-        return columns
-                .stream()
-                .mapToInt(Column::getWidth)
-                .map(width -> tableWidth * width / sum)
-                .mapToObj(ConfluenceConverter::formatWidth);
+        StringBuilder out = acquireBuilder();
+        try {
+            appendParagraph(out, text);
+            return out.toString();
+        } finally {
+            releaseBuilder(out);
+        }
     }
 
-    private static String disclaimer(String disclaimer) {
-
-        String macroId = UUID.nameUUIDFromBytes(disclaimer.getBytes()).toString();
-
-        return String.format("<ac:structured-macro ac:name='%s' ac:schema-version='1' ac:macro-id='%s'>" +
-                "<ac:rich-text-body>%s</ac:rich-text-body>" +
-                "</ac:structured-macro>", "note", macroId, disclaimer);
+    /**
+     * Пробельные символы в смысле {@code \s} регулярных выражений.
+     */
+    private static boolean isWhitespace(char c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r';
     }
 
+    private static void appendSectionTitle(StringBuilder out, Section section) {
 
-    private final Supplier<UUID> uuidSupplier = new Supplier<>() {
+        boolean needsNumber = section.isNumbered();
+        if (needsNumber) {
+            String maxLevel = (String) section.getDocument().getAttribute("sectnumlevels");
+            needsNumber = maxLevel == null || section.getLevel() <= Integer.parseInt(maxLevel);
+        }
 
-        private final Random random = new Random(68541645);
+        boolean numbered = needsNumber && appendSectionNumber(out, section);
 
-        @Override
-        public UUID get() {
+        String title = section.getTitle();
+        if (title != null && !title.isEmpty()) {
+            if (numbered) {
+                // Номер отделяется от заголовка неразрывным пробелом.
+                out.append(".\u00A0");
+            }
+            out.append(title);
+        }
+    }
 
-            byte[] data = new byte[16];
-            random.nextBytes(data);
+    /**
+     * Выводит номер рубрики вместе с номерами родительских рубрик, разделёнными точками.
+     *
+     * @return {@code true}, если что-либо выведено
+     */
+    private static boolean appendSectionNumber(StringBuilder out, Section section) {
 
-            data[6]  &= (byte) 0x0f;  /* clear version        */
-            data[6]  |= (byte) 0x40;  /* set to version 4     */
-            data[8]  &= (byte) 0x3f;  /* clear variant        */
-            data[8]  |= (byte) 0x80;  /* set to IETF variant  */
+        boolean appended = section.getParent() instanceof Section
+                && appendSectionNumber(out, (Section) section.getParent());
 
-            long msb = 0;
-            long lsb = 0;
-            for (int i = 0; i < 8; i++) {
-                msb = (msb << 8) | (data[i] & 0xff);
-            }
-            for (int i = 8; i < 16; i++) {
-                lsb = (lsb << 8) | (data[i] & 0xff);
+        String numeral = section.getNumeral();
+        if (numeral != null && !numeral.isEmpty()) {
+            if (appended) {
+                out.append('.');
             }
-
-            return new UUID(msb, lsb);
+            out.append(numeral);
+            return true;
         }
-    };
+
+        return appended;
+    }
+
+    private void appendDisclaimer(StringBuilder out, String disclaimer) {
+        appendRichTextMacro(out, "note", macroIds.next("disclaimer", disclaimer), disclaimer);
+    }
+
+    private static void appendRichTextMacro(StringBuilder out, String name, UUID macroId, String content) {
+
+        out.append("<ac:structured-macro ac:name='").append(name)
+                .append("' ac:schema-version='1' ac:macro-id='").append(macroId).append("'>")
+                .append("<ac:rich-text-body>").append(content).append("</ac:rich-text-body>")
+                .append("</ac:structured-macro>");
+    }
 
     private String link(PhraseNode phrase) {
 
@@ -485,29 +646,46 @@ public class ConfluenceConverter extends StringConverter {
             return href(phrase, "#%5BinlineExtension%5D" + target.substring(1));
         }
 
-        Optional<String> url = Optional.ofNullable((String) phrase.getDocument().getAttribute("jira-url"));
-        if (url.isPresent() && target.startsWith(url.get())) {
-            Pattern pattern = Pattern.compile(url.get() + "(.*)");
-            Matcher matcher = pattern.matcher(target);
-            if (matcher.matches()) {
-                String macroId = new UUIDComposer(uuidSupplier.get())
-                        .compose(UUID.nameUUIDFromBytes(matcher.group(1).getBytes())).toString();
-                String serverId = Optional
-                        .ofNullable((String) phrase.getDocument().getAttribute("jira-server-id"))
-                        .orElseThrow(() -> new IllegalArgumentException("Attribute `jira-server-id` is not provided"));
-                String server = Optional
-                        .ofNullable((String) phrase.getDocument().getAttribute("jira-server"))
-                        .orElseThrow(() -> new IllegalArgumentException("Attribute `jira-server` is not provided"));
-
-                return "<ac:structured-macro ac:name='jira' ac:schema-version='1' ac:macro-id='" + macroId + "'>" +
-                        "<ac:parameter ac:name='server'>" + server + "</ac:parameter>" +
-                        "<ac:parameter ac:name='serverId'>" + serverId + "</ac:parameter>" +
-                        "<ac:parameter ac:name='key'>" + matcher.group(1) + "</ac:parameter>" +
-                        "</ac:structured-macro>";
-            }
+        return linkContext
+                .rewrite(target, phrase)
+                .orElseGet(() -> href(phrase, target));
+    }
+
+    /**
+     * Ключ макроса блока: явно заданный идентификатор блока, а при его отсутствии — указанное значение
+     * (заголовок или содержимое). Идентификатор позволяет сохранить макрос при изменении содержимого.
+     */
+    private static String macroKey(StructuralNode block, String fallback) {
+        return block.getId() != null ? block.getId() : fallback;
+    }
+
+    /**
+     * Режим конвертации определяется по атрибуту {@value #CONVERT_MODE_ATTRIBUTE} документа, с которого
+     * начата конвертация.
+     */
+    private boolean treeWalk(ContentNode node) {
+
+        if (treeWalk == null) {
+            Object mode = node.getDocument().getAttribute(CONVERT_MODE_ATTRIBUTE);
+            treeWalk = !CONVERT_MODE_RUBY.equals(mode);
         }
+        return treeWalk;
+    }
 
-        return href(phrase, phrase.getTarget());
+    private DocumentAttributes documentAttributes(ContentNode node) {
+
+        if (documentAttributes == null) {
+            documentAttributes = new DocumentAttributes(JRubyRuntimeContext.get(node));
+        }
+        return documentAttributes;
+    }
+
+    private TableRenderer tableRenderer(ContentNode node) {
+
+        if (tableRenderer == null) {
+            tableRenderer = new TableRenderer(JRubyRuntimeContext.get(node));
+        }
+        return tableRenderer;
     }
 
     private String href(PhraseNode phrase, String target) {
@@ -515,58 +693,55 @@ public class ConfluenceConverter extends StringConverter {
         return "<a href='" + target + "'>" + refText + "</a>";
     }
 
-    private static String anchor(String anchorId) {
+    private void appendAnchor(StringBuilder out, String anchorId) {
 
         assert anchorId != null;
 
-        UUIDComposer composer = new UUIDComposer(UUID.fromString("7413e515-3d6f-40e9-9ed4-0157f9afee9b"));
-        UUID uuidExpand = UUID.nameUUIDFromBytes(anchorId.getBytes());
-        UUID uuidAnchor = composer.compose(uuidExpand);
-
-        return "<ac:structured-macro ac:name='anchor' ac:schema-version='1' ac:macro-id='" + uuidAnchor + "'>" +
-                "<ac:parameter ac:name=''>" + anchorId + "</ac:parameter>" +
-                "</ac:structured-macro>";
+        out.append("<ac:structured-macro ac:name='anchor' ac:schema-version='1' ac:macro-id='")
+                .append(macroIds.next("anchor", anchorId)).append("'>")
+                .append("<ac:parameter ac:name=''>").append(anchorId).append("</ac:parameter>")
+                .append("</ac:structured-macro>");
     }
 
-    private static String toc(String documentTitle) {
-
-        UUIDComposer composer = new UUIDComposer(UUID.fromString("9d6d6c0b-bb40-488f-9f0b-bd4829ce1bc8"));
-        UUID uuidExpand = UUID.nameUUIDFromBytes(documentTitle.getBytes());
-        UUID uuidToc = composer.compose(uuidExpand);
-
-        return "<ac:structured-macro ac:name='expand' ac:schema-version='1' ac:macro-id='" + uuidExpand + "'>" +
-                "<ac:parameter ac:name='title'>Оглавление</ac:parameter>" +
-                "<ac:rich-text-body>" +
-                "<ac:structured-macro ac:name='toc' ac:schema-version='1' ac:macro-id='" + uuidToc + "'>" +
-                "<ac:parameter ac:name='printable'>false</ac:parameter>" +
-                "</ac:structured-macro>" +
-                "</ac:rich-text-body>" +
-                "</ac:structured-macro>";
+    private void appendToc(StringBuilder out, String documentTitle) {
+
+        out.append("<ac:structured-macro ac:name='expand' ac:schema-version='1' ac:macro-id='")
+                .append(macroIds.next("toc-expand", documentTitle)).append("'>")
+                .append("<ac:parameter ac:name='title'>Оглавление</ac:parameter>")
+                .append("<ac:rich-text-body>")
+                .append("<ac:structured-macro ac:name='toc' ac:schema-version='1' ac:macro-id='")
+                .append(macroIds.next("toc", documentTitle)).append("'>")
+                .append("<ac:parameter ac:name='printable'>false</ac:parameter>")
+                .append("</ac:structured-macro>")
+                .append("</ac:rich-text-body>")
+                .append("</ac:structured-macro>");
     }
 
-    private static String expandable(String expandTitle, String content) {
+    private void appendExpandable(StringBuilder out, Block block) {
 
-        if (expandTitle != null) {
-            UUID uuidExpand = UUID.nameUUIDFromBytes(expandTitle.getBytes());
+        String expandTitle = (String) block.getAttribute("title");
+        String content = formatContent(block);
 
-            return "<ac:structured-macro ac:name='expand' ac:schema-version='1' ac:macro-id='" + uuidExpand + "'>"
-                    + "<ac:parameter ac:name='title'>" + expandTitle + "</ac:parameter>"
-                    + "<ac:rich-text-body>"
-                    + content
-                    + "</ac:rich-text-body>"
-                    + "</ac:structured-macro>";
+        if (expandTitle != null) {
+            out.append("<ac:structured-macro ac:name='expand' ac:schema-version='1' ac:macro-id='")
+                    .append(macroIds.next("expand", macroKey(block, expandTitle))).append("'>")
+                    .append("<ac:parameter ac:name='title'>").append(expandTitle).append("</ac:parameter>")
+                    .append("<ac:rich-text-body>")
+                    .append(content)
+                    .append("</ac:rich-text-body>")
+                    .append("</ac:structured-macro>");
 
         } else {
             log.warn("Для разворачивания не указан заголовок, содержимое будет добавлено без разворачивания");
-            return content;
+            out.append(content);
         }
     }
 
-    private static String formatWidth(int width) {
-        return String.format("width: %d.0px; ", width);
+    static String formatWidth(int width) {
+        return "width: " + width + ".0px; ";
     }
 
-    private static String formatWidth(Object width) {
+    static String formatWidth(Object width) {
 
         Matcher matcher = PATTERN_WIDTH.matcher(width.toString());
         if (matcher.matches()) {
@@ -0,0 +1,160 @@
+package ru.kbakaras.cop.adoc;
+
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.codec.digest.DigestUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Постоянный кэш диаграмм asciidoctor-diagram, сохраняющийся между запусками.
+ * <p>
+ * Кэш опирается на механизм самого asciidoctor-diagram: для каждой диаграммы рядом с изображением
+ * сохраняются метаданные с контрольной суммой, вычисленной по типу диаграммы, её исходному коду
+ * и атрибутам. Если изображение и метаданные уже есть и контрольная сумма совпадает, рендерер
+ * не запускается. Кэш лишь направляет изображения и метаданные в постоянный каталог вместо
+ * каталога документа (атрибуты {@code imagesoutdir} и {@code diagram-cachedir}).
+ * <p>
+ * Имена изображений при этом не меняются: для диаграмм без явно заданного имени asciidoctor-diagram
+ * сам формирует имя по контрольной сумме. Поэтому вложения страницы остаются прежними. Для каждого
+ * каталога с документами выделяется свой подкаталог кэша, чтобы диаграммы с одинаковыми явно
+ * заданными именами из разных каталогов не вытесняли друг друга.
+ * <p>
+ * asciidoctor-diagram записывает изображение и метаданные на место, без временного файла. Поэтому документы
+ * из одного каталога конвертируются под блокировкой его подкаталога ({@link #lock(File)}), а сам каталог кэша
+ * не должен использоваться одновременно несколькими запусками.
+ * <p>
+ * Размер кэша ограничен: при превышении удаляются изображения, которые дольше всего не использовались.
+ */
+@Slf4j
+public class DiagramCache {
+
+    private static final String IMAGES_DIR = "images";
+    private static final String METADATA_DIR = "metadata";
+    private static final String METADATA_SUFFIX = ".cache";
+
+    private final File cacheDir;
+    private final long maxSize;
+
+    private final Map<String, Lock> locks = new ConcurrentHashMap<>();
+
+
+    public DiagramCache(File cacheDir, long maxSize) {
+        this.cacheDir = cacheDir.getAbsoluteFile();
+        this.maxSize = maxSize;
+    }
+
+
+    /**
+     * Атрибуты, которые нужно передать Asciidoctor при конвертации документа из указанного каталога.
+     * Атрибуты устанавливаются мягко, поэтому значения, заданные в самом документе, имеют приоритет.
+     */
+    public Map<String, Object> attributes(File documentDir) {
+
+        Map<String, Object> attributes = new HashMap<>();
+        attributes.put("imagesoutdir", imagesDir(documentDir).getPath() + "@");
+        attributes.put("diagram-cachedir", metadataDir(documentDir).getPath() + "@");
+        return attributes;
+    }
+
+    /**
+     * Блокировка подкаталога кэша, общего для документов из указанного каталога. Удерживается от начала
+     * конвертации документа до чтения изображений его диаграмм.
+     */
+    public Lock lock(File documentDir) {
+        return locks.computeIfAbsent(directoryKey(documentDir), key -> new ReentrantLock());
+    }
+
+    /**
+     * Находит в кэше изображение диаграммы, на которое ссылается документ из указанного каталога,
+     * и отмечает его как использованное.
+     */
+    public Optional<File> resolve(File documentDir, String imageName) {
+
+        File image = new File(imagesDir(documentDir), new File(imageName).getName());
+        if (image.isFile()) {
+            //noinspection ResultOfMethodCallIgnored
+            image.setLastModified(System.currentTimeMillis());
+            return Optional.of(image);
+        }
+
+        return Optional.empty();
+    }
+
+    /**
+     * Удаляет из кэша изображения, которые дольше всего не использовались, пока общий размер
+     * кэша не станет меньше заданного ограничения.
+     */
+    public void evict() {
+
+        Path imagesRoot = new File(cacheDir, IMAGES_DIR).toPath();
+        if (!Files.isDirectory(imagesRoot)) {
+            return;
+        }
+
+        try (Stream<Path> paths = Files.walk(imagesRoot)) {
+
+            List<File> images = paths
+                    .filter(Files::isRegularFile)
+                    .map(Path::toFile)
+                    .sorted(Comparator.comparingLong(File::lastModified))
+                    .collect(Collectors.toList());
+
+            long size = images.stream().mapToLong(File::length).sum();
+            int evicted = 0;
+
+            for (File image : images) {
+                if (size <= maxSize) {
+                    break;
+                }
+
+                size -= image.length();
+                Files.deleteIfExists(image.toPath());
+                Files.deleteIfExists(metadataFile(imagesRoot, image));
+                evicted++;
+            }
+
+            if (evicted > 0) {
+                log.info("Evicted {} diagram(s) from cache '{}'", evicted, cacheDir);
+            }
+
+        } catch (IOException | UncheckedIOException e) {
+            log.warn("Unable to evict diagrams from cache '{}'", cacheDir, e);
+        }
+    }
+
+
+    private Path metadataFile(Path imagesRoot, File image) {
+
+        Path relative = imagesRoot.relativize(image.toPath());
+        return new File(cacheDir, METADATA_DIR).toPath()
+                .resolve(relative.getParent())
+                .resolve(image.getName() + METADATA_SUFFIX);
+    }
+
+    private File imagesDir(File documentDir) {
+        return new File(new File(cacheDir, IMAGES_DIR), directoryKey(documentDir));
+    }
+
+    private File metadataDir(File documentDir) {
+        return new File(new File(cacheDir, METADATA_DIR), directoryKey(documentDir));
+    }
+
+    private static String directoryKey(File documentDir) {
+        return DigestUtils.sha1Hex(documentDir.getAbsolutePath()).substring(0, 16);
+    }
+
+}
@@ -0,0 +1,93 @@
+package ru.kbakaras.cop.adoc;
+
+import org.asciidoctor.ast.Document;
+import org.asciidoctor.ast.StructuralNode;
+import org.asciidoctor.jruby.internal.RubyObjectWrapper;
+import org.jruby.Ruby;
+import org.jruby.RubyArray;
+import org.jruby.runtime.ThreadContext;
+import org.jruby.runtime.builtin.IRubyObject;
+
+/**
+ * Изменения атрибутов документа, которые Asciidoctor выполняет при конвертации содержимого блоков
+ * ({@code AbstractBlock#content}, {@code AbstractBlock#convert}, {@code Document#content}). При обходе
+ * дерева блоков из Java (см. {@link ConfluenceConverter}) они повторяются здесь, иначе, например,
+ * атрибуты, заданные между блоками ({@code :imagesdir: ...}), не применялись бы к последующим блокам.
+ * <p>
+ * Записи атрибутов хранятся в атрибутах блока под ключом-символом, который через AsciidoctorJ
+ * не виден, поэтому проверка и применение выполняются небольшими процедурами Ruby.
+ */
+class DocumentAttributes {
+
+    /**
+     * Номера дочерних блоков, перед которыми заданы атрибуты. Обычно массив пуст.
+     */
+    private static final String ENTRIES_SCRIPT = String.join("\n",
+            "lambda do |parent|",
+            "  result = []",
+            "  parent.blocks.each_with_index {|block, i| result << i if block.attributes.key? :attribute_entries }",
+            "  result",
+            "end");
+
+    private static final String PLAYBACK_SCRIPT =
+            "lambda {|block| block.document.playback_attributes block.attributes; nil }";
+
+    private static final String REMOVE_TITLE_SCRIPT =
+            "lambda {|document| document.attributes.delete 'title'; nil }";
+
+    private static final int[] NONE = new int[0];
+
+    private final Ruby runtime;
+    private final IRubyObject entries;
+    private final IRubyObject playback;
+    private final IRubyObject removeTitle;
+
+
+    DocumentAttributes(Ruby runtime) {
+        this.runtime = runtime;
+        this.entries = runtime.evalScriptlet(ENTRIES_SCRIPT);
+        this.playback = runtime.evalScriptlet(PLAYBACK_SCRIPT);
+        this.removeTitle = runtime.evalScriptlet(REMOVE_TITLE_SCRIPT);
+    }
+
+
+    /**
+     * Номера дочерних блоков, перед конвертацией которых нужно вызвать {@link #playback}, по возрастанию.
+     */
+    int[] entries(StructuralNode parent) {
+
+        RubyArray<?> indices = (RubyArray<?>) call(entries, parent);
+        if (indices.isEmpty()) {
+            return NONE;
+        }
+
+        int[] result = new int[indices.getLength()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = (int) indices.eltInternal(i).convertToInteger().getLongValue();
+        }
+        return result;
+    }
+
+    /**
+     * Применяет атрибуты, заданные перед блоком.
+     */
+    void playback(StructuralNode block) {
+        call(playback, block);
+    }
+
+    /**
+     * Удаляет атрибут {@code title}: по спецификации AsciiDoc заголовок удаляется перед конвертацией
+     * содержимого документа.
+     */
+    void removeTitle(Document document) {
+        call(removeTitle, document);
+    }
+
+
+    private IRubyObject call(IRubyObject lambda, StructuralNode node) {
+
+        ThreadContext context = runtime.getCurrentContext();
+        return lambda.callMethod(context, "call", ((RubyObjectWrapper) node).getRubyObject());
+    }
+
+}
@@ -0,0 +1,81 @@
+package ru.kbakaras.cop.adoc;
+
+import org.asciidoctor.ast.Document;
+import org.asciidoctor.ast.PhraseNode;
+
+import java.util.List;
+import java.util.Optional;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Преобразование ссылок на задачи Jira в макрос {@code jira}. Применяется в документах, в которых задан
+ * атрибут {@code jira-url}: ссылка, начинающаяся с его значения, заменяется макросом, а остаток адреса
+ * считается ключом задачи. Для макроса нужны также атрибуты {@code jira-server} и {@code jira-server-id};
+ * их отсутствие является ошибкой только при наличии в документе ссылок на Jira. Атрибуты можно задать
+ * и в теле документа: они действуют на ссылки, следующие за ними.
+ */
+class JiraLinkRewriter implements LinkRewriter {
+
+    private static final List<String> ATTRIBUTES = List.of("jira-url", "jira-server", "jira-server-id");
+
+    static final LinkRewriter.Factory FACTORY = new LinkRewriter.Factory() {
+
+        @Override
+        public Optional<LinkRewriter> create(Document document, MacroIds macroIds) {
+            return JiraLinkRewriter.create(document, macroIds);
+        }
+
+        @Override
+        public List<String> attributes() {
+            return ATTRIBUTES;
+        }
+    };
+
+    private final Pattern pattern;
+    private final String server;
+    private final String serverId;
+    private final MacroIds macroIds;
+
+
+    private JiraLinkRewriter(String url, String server, String serverId, MacroIds macroIds) {
+        this.pattern = Pattern.compile(Pattern.quote(url) + "(.*)");
+        this.server = server;
+        this.serverId = serverId;
+        this.macroIds = macroIds;
+    }
+
+    static Optional<LinkRewriter> create(Document document, MacroIds macroIds) {
+
+        return Optional.ofNullable((String) document.getAttribute("jira-url"))
+                .map(url -> new JiraLinkRewriter(url,
+                        (String) document.getAttribute("jira-server"),
+                        (String) document.getAttribute("jira-server-id"),
+                        macroIds));
+    }
+
+
+    @Override
+    public Optional<String> rewrite(String target, PhraseNode phrase) {
+
+        Matcher matcher = pattern.matcher(target);
+        if (!matcher.matches()) {
+            return Optional.empty();
+        }
+
+        String key = matcher.group(1);
+        String serverId = Optional.ofNullable(this.serverId)
+                .orElseThrow(() -> new IllegalArgumentException("Attribute `jira-server-id` is not provided"));
+        String server = Optional.ofNullable(this.server)
+                .orElseThrow(() -> new IllegalArgumentException("Attribute `jira-server` is not provided"));
+
+        String macroId = macroIds.next("jira", key).toString();
+
+        return Optional.of("<ac:structured-macro ac:name='jira' ac:schema-version='1' ac:macro-id='" + macroId + "'>" +
+                "<ac:parameter ac:name='server'>" + server + "</ac:parameter>" +
+                "<ac:parameter ac:name='serverId'>" + serverId + "</ac:parameter>" +
+                "<ac:parameter ac:name='key'>" + key + "</ac:parameter>" +
+                "</ac:structured-macro>");
+    }
+
+}
@@ -0,0 +1,91 @@
+package ru.kbakaras.cop.adoc;
+
+import org.asciidoctor.ast.Document;
+import org.asciidoctor.ast.PhraseNode;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.stream.Collectors;
+
+/**
+ * Контекст преобразования ссылок документа: преобразователи ({@link LinkRewriter}), созданные для
+ * документа всеми зарегистрированными фабриками. Ссылка передаётся преобразователям по порядку
+ * регистрации фабрик, первый результат заменяет ссылку.
+ * <p>
+ * Преобразователь создаётся при первой ссылке и пересоздаётся, только если изменились значения
+ * атрибутов, от которых он зависит ({@link LinkRewriter.Factory#attributes()}): атрибуты можно
+ * задать и изменить в теле документа, и такое изменение действует на последующие ссылки. Сравнение
+ * значений атрибутов намного дешевле создания преобразователя.
+ * <p>
+ * Фабрики регистрируются методом {@link #register(LinkRewriter.Factory)} до начала конвертации
+ * и действуют для конвертеров, созданных после регистрации; {@link #unregister(LinkRewriter.Factory)}
+ * отменяет регистрацию. Ссылки на задачи Jira ({@link JiraLinkRewriter}) обрабатываются всегда.
+ */
+public class LinkContext {
+
+    private static final List<LinkRewriter.Factory> FACTORIES = new CopyOnWriteArrayList<>(
+            List.of(JiraLinkRewriter.FACTORY));
+
+    private final MacroIds macroIds;
+    private final List<Slot> slots;
+
+
+    LinkContext(MacroIds macroIds) {
+        this.macroIds = macroIds;
+        this.slots = FACTORIES.stream()
+                .map(Slot::new)
+                .collect(Collectors.toList());
+    }
+
+    public static void register(LinkRewriter.Factory factory) {
+        FACTORIES.add(factory);
+    }
+
+    public static void unregister(LinkRewriter.Factory factory) {
+        FACTORIES.remove(factory);
+    }
+
+
+    Optional<String> rewrite(String target, PhraseNode phrase) {
+
+        Document document = phrase.getDocument();
+        for (Slot slot : slots) {
+            Optional<String> result = slot.rewriter(document).flatMap(rewriter -> rewriter.rewrite(target, phrase));
+            if (result.isPresent()) {
+                return result;
+            }
+        }
+        return Optional.empty();
+    }
+
+
+    /**
+     * Преобразователь одной фабрики вместе со значениями атрибутов, по которым он создан.
+     */
+    private final class Slot {
+
+        private final LinkRewriter.Factory factory;
+        private Object[] values;
+        private Optional<LinkRewriter> rewriter;
+
+        Slot(LinkRewriter.Factory factory) {
+            this.factory = factory;
+        }
+
+        Optional<LinkRewriter> rewriter(Document document) {
+
+            Object[] current = factory.attributes().stream()
+                    .map(document::getAttribute)
+                    .toArray();
+
+            if (rewriter == null || !Arrays.equals(values, current)) {
+                values = current;
+                rewriter = factory.create(document, macroIds);
+            }
+            return rewriter;
+        }
+    }
+
+}
@@ -0,0 +1,46 @@
+package ru.kbakaras.cop.adoc;
+
+import org.asciidoctor.ast.Document;
+import org.asciidoctor.ast.PhraseNode;
+
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * Преобразование ссылки в макрос Confluence (например, ссылки на задачу Jira в макрос {@code jira}).
+ * Преобразователи создаются фабриками, зарегистрированными в {@link LinkContext}, при первой ссылке
+ * документа и пересоздаются при изменении атрибутов, от которых зависят.
+ */
+@FunctionalInterface
+public interface LinkRewriter {
+
+    /**
+     * @param target адрес ссылки
+     * @return разметка, заменяющая ссылку, или пустое значение, если ссылка этим преобразователем
+     * не обрабатывается
+     */
+    Optional<String> rewrite(String target, PhraseNode phrase);
+
+
+    @FunctionalInterface
+    interface Factory {
+
+        /**
+         * Создаёт преобразователь для документа. Всё, что зависит только от документа (атрибуты,
+         * регулярные выражения), вычисляется здесь, а не при обработке каждой ссылки.
+         *
+         * @param macroIds идентификаторы макросов документа
+         * @return преобразователь или пустое значение, если в документе он не применяется
+         */
+        Optional<LinkRewriter> create(Document document, MacroIds macroIds);
+
+        /**
+         * Атрибуты документа, от которых зависит преобразователь. Когда значение любого из них меняется
+         * (например, атрибут задан в теле документа), преобразователь создаётся заново.
+         */
+        default List<String> attributes() {
+            return List.of();
+        }
+    }
+
+}
@@ -0,0 +1,207 @@
+package ru.kbakaras.cop.adoc;
+
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Идентификаторы макросов ({@code ac:macro-id}) документа.
+ * <p>
+ * Идентификатор — 128-битный хэш MurmurHash3 (x64, 128) от вида макроса, ключа и порядкового номера
+ * макроса с тем же видом и ключом в документе. Ключ — устойчивое значение, по которому макрос
+ * узнаётся при повторной публикации: идентификатор блока, ключ задачи Jira, заголовок или содержимое.
+ * Благодаря порядковому номеру одинаковые макросы получают разные идентификаторы, а идентификаторы
+ * остальных макросов не зависят ни от их порядка в документе, ни от запуска: при повторной публикации
+ * неизменённого документа содержимое страницы не меняется.
+ * <p>
+ * Хэш вычисляется прямо по символам строк (в кодировке UTF-16LE), без промежуточных массивов байт.
+ * Экземпляр создаётся на документ; счётчики номеров потокобезопасны.
+ */
+public final class MacroIds {
+
+    private static final long C1 = 0x87c37b91114253d5L;
+    private static final long C2 = 0x4cf5ad432745937fL;
+
+    private static final int SEED = 68541645;
+
+    /**
+     * Номера, уже выданные по виду и ключу макроса.
+     */
+    private final Map<String, Map<String, Integer>> occurrences = new ConcurrentHashMap<>();
+
+
+    /**
+     * Идентификатор очередного макроса с указанными видом и ключом.
+     *
+     * @param kind вид макроса, например {@code code} или {@code jira}
+     * @param key  устойчивый ключ макроса; {@code null} равнозначен пустой строке
+     */
+    public UUID next(String kind, String key) {
+
+        if (key == null) {
+            key = "";
+        }
+
+        int occurrence = occurrences
+                .computeIfAbsent(kind, k -> new ConcurrentHashMap<>())
+                .merge(key, 1, Integer::sum) - 1;
+        return hash(kind, key, occurrence);
+    }
+
+
+    /**
+     * Хэш набора: длина вида, вид, ключ, номер. Длина вида делает разбиение на вид и ключ однозначным.
+     */
+    static UUID hash(String kind, String key, int occurrence) {
+
+        Murmur3 murmur = new Murmur3(SEED);
+        murmur.putInt(kind.length());
+        murmur.putChars(kind);
+        murmur.putChars(key);
+        murmur.putInt(occurrence);
+
+        long[] h = murmur.finish();
+
+        // Версия 8 (произвольный алгоритм) и вариант IETF, как того требует RFC 9562.
+        long msb = (h[0] & ~0xf000L) | 0x8000L;
+        long lsb = (h[1] & ~(0xc0L << 56)) | (0x80L << 56);
+        return new UUID(msb, lsb);
+    }
+
+
+    /**
+     * MurmurHash3 x64 128 над последовательностью 16-битных значений. Символ всегда занимает два байта,
+     * а блок — шестнадцать, поэтому символ никогда не попадает на границу блоков.
+     */
+    private static final class Murmur3 {
+
+        private long h1;
+        private long h2;
+
+        private long k1;
+        private long k2;
+
+        /**
+         * Количество символов в текущем блоке (0–7).
+         */
+        private int position;
+        private long length;
+
+
+        Murmur3(int seed) {
+            this.h1 = seed & 0xffffffffL;
+            this.h2 = seed & 0xffffffffL;
+        }
+
+
+        void putChars(String chars) {
+
+            int count = chars.length();
+            int i = 0;
+            while (i < count && position != 0) {
+                putChar(chars.charAt(i++));
+            }
+
+            // Целые блоки по восемь символов; сюда доходит только при пустом текущем блоке.
+            for (; i + 8 <= count; i += 8) {
+                k1 = chars.charAt(i)
+                        | (long) chars.charAt(i + 1) << 16
+                        | (long) chars.charAt(i + 2) << 32
+                        | (long) chars.charAt(i + 3) << 48;
+                k2 = chars.charAt(i + 4)
+                        | (long) chars.charAt(i + 5) << 16
+                        | (long) chars.charAt(i + 6) << 32
+                        | (long) chars.charAt(i + 7) << 48;
+                mixBlock();
+                k1 = 0;
+                k2 = 0;
+                length += 16;
+            }
+
+            while (i < count) {
+                putChar(chars.charAt(i++));
+            }
+        }
+
+        void putInt(int value) {
+            putChar((char) value);
+            putChar((char) (value >>> 16));
+        }
+
+        private void putChar(char c) {
+
+            if (position < 4) {
+                k1 |= (long) c << (position << 4);
+            } else {
+                k2 |= (long) c << ((position - 4) << 4);
+            }
+            length += 2;
+
+            if (++position == 8) {
+                mixBlock();
+                k1 = 0;
+                k2 = 0;
+                position = 0;
+            }
+        }
+
+        private void mixBlock() {
+
+            h1 ^= mixK1(k1);
+            h1 = Long.rotateLeft(h1, 27);
+            h1 += h2;
+            h1 = h1 * 5 + 0x52dce729;
+
+            h2 ^= mixK2(k2);
+            h2 = Long.rotateLeft(h2, 31);
+            h2 += h1;
+            h2 = h2 * 5 + 0x38495ab5;
+        }
+
+        long[] finish() {
+
+            if (position > 4) {
+                h2 ^= mixK2(k2);
+            }
+            if (position > 0) {
+                h1 ^= mixK1(k1);
+            }
+
+            h1 ^= length;
+            h2 ^= length;
+
+            h1 += h2;
+            h2 += h1;
+
+            h1 = fmix(h1);
+            h2 = fmix(h2);
+
+            h1 += h2;
+            h2 += h1;
+
+            return new long[]{h1, h2};
+        }
+
+        private static long mixK1(long k1) {
+            k1 *= C1;
+            k1 = Long.rotateLeft(k1, 31);
+            return k1 * C2;
+        }
+
+        private static long mixK2(long k2) {
+            k2 *= C2;
+            k2 = Long.rotateLeft(k2, 33);
+            return k2 * C1;
+        }
+
+        private static long fmix(long k) {
+            k ^= k >>> 33;
+            k *= 0xff51afd7ed558ccdL;
+            k ^= k >>> 33;
+            k *= 0xc4ceb9fe1a85ec53L;
+            k ^= k >>> 33;
+            return k;
+        }
+    }
+
+}
@@ -0,0 +1,200 @@
+package ru.kbakaras.cop.adoc;
+
+import org.asciidoctor.ast.Column;
+import org.asciidoctor.ast.Table;
+import org.asciidoctor.jruby.internal.RubyObjectWrapper;
+import org.jruby.Ruby;
+import org.jruby.RubyArray;
+import org.jruby.RubyString;
+import org.jruby.runtime.ThreadContext;
+import org.jruby.runtime.builtin.IRubyObject;
+
+import java.util.List;
+
+/**
+ * Вывод таблицы в формат хранения Confluence.
+ * <p>
+ * Строки выводятся в буфер конвертера по мере получения, порциями по {@value #BATCH_SIZE}. Данные
+ * ячеек порции (объединения, выравнивание и содержимое) собираются одним вызовом Ruby в плоский
+ * массив. Через AsciidoctorJ понадобилось бы несколько переходов между Java и JRuby на каждую ячейку
+ * и по объекту-обёртке на каждую строку и ячейку, а на больших таблицах это обходится дороже самого
+ * вывода. Промежуточные данные не превышают одной порции, поэтому, кроме самого результата,
+ * расход памяти на таблицу от её размера не зависит.
+ */
+class TableRenderer {
+
+    static final int BATCH_SIZE = 256;
+
+    /**
+     * Для каждой строки порции: количество ячеек, затем для каждой ячейки пять значений —
+     * colspan, rowspan, выравнивание, признак содержимого asciidoc и само содержимое. Для ячеек
+     * заголовка содержимое — текст ячейки, для остальных — результат {@code Cell#content}: строка
+     * для ячеек asciidoc и массив абзацев для прочих.
+     */
+    private static final String CELLS_SCRIPT = String.join("\n",
+            "lambda do |table, header, from, count|",
+            "  result = []",
+            "  rows = (header ? table.rows.head : table.rows.body)[from, count]",
+            "  (rows || []).each do |row|",
+            "    result << row.size",
+            "    row.each do |cell|",
+            "      result << (cell.colspan || 0) << (cell.rowspan || 0) << cell.attributes['halign'].to_s",
+            "      if header",
+            "        result << false << cell.text",
+            "      else",
+            "        asciidoc = cell.style == :asciidoc",
+            "        result << asciidoc << cell.content",
+            "      end",
+            "    end",
+            "  end",
+            "  result",
+            "end");
+
+    private static final int CELL_VALUES = 5;
+
+    private final Ruby runtime;
+    private final IRubyObject cells;
+
+
+    TableRenderer(Ruby runtime) {
+        this.runtime = runtime;
+        this.cells = runtime.evalScriptlet(CELLS_SCRIPT);
+    }
+
+
+    /**
+     * @return количество вызовов Ruby, понадобившихся для получения данных ячеек
+     */
+    int render(StringBuilder out, Table table) {
+
+        boolean wide = Boolean.parseBoolean((String) table.getAttribute("wide"));
+
+        out.append("<table class='wrapped relative-table'");
+        if (wide) {
+            out.append("data-layout='wide'");
+        }
+
+        Object width = table.getAttribute("width");
+        if (width != null) {
+            out.append(" style='").append(ConfluenceConverter.formatWidth(width)).append('\'');
+        }
+        out.append('>');
+
+        out.append("<colgroup>");
+        appendColumns(out, table.getColumns(), wide ? 960 : 680);
+        out.append("</colgroup>");
+
+        out.append("<tbody>\n");
+
+        IRubyObject rubyTable = ((RubyObjectWrapper) table).getRubyObject();
+        int calls = appendRows(out, rubyTable, true)
+                + appendRows(out, rubyTable, false);
+
+        out.append("\n</tbody>");
+        out.append("\n</table>\n");
+        return calls;
+    }
+
+    private int appendRows(StringBuilder out, IRubyObject rubyTable, boolean header) {
+
+        ThreadContext context = runtime.getCurrentContext();
+
+        for (int from = 0, calls = 1; ; from += BATCH_SIZE, calls++) {
+
+            RubyArray<?> batch = (RubyArray<?>) cells.callMethod(context, "call", new IRubyObject[]{
+                    rubyTable, runtime.newBoolean(header), runtime.newFixnum(from), runtime.newFixnum(BATCH_SIZE)});
+
+            int rows = 0;
+            int i = 0;
+            int length = batch.getLength();
+            while (i < length) {
+                int cellCount = toInt(batch.eltInternal(i++));
+
+                out.append("<tr>\n");
+                for (int c = 0; c < cellCount; c++, i += CELL_VALUES) {
+                    if (header) {
+                        appendHeaderCell(out, batch, i);
+                    } else {
+                        appendBodyCell(out, batch, i);
+                    }
+                }
+                out.append("</tr>\n");
+                rows++;
+            }
+
+            if (rows < BATCH_SIZE) {
+                return calls;
+            }
+        }
+    }
+
+    private static void appendHeaderCell(StringBuilder out, RubyArray<?> batch, int i) {
+
+        out.append("<th");
+        appendAlignment(out, batch.eltInternal(i + 2).asJavaString());
+        out.append('>')
+                .append(batch.eltInternal(i + 4).asJavaString())
+                .append("</th>\n");
+    }
+
+    private static void appendBodyCell(StringBuilder out, RubyArray<?> batch, int i) {
+
+        out.append("<td");
+
+        int colspan = toInt(batch.eltInternal(i));
+        int rowspan = toInt(batch.eltInternal(i + 1));
+        if (colspan > 0) {
+            out.append(" colspan='").append(colspan).append('\'');
+        }
+        if (colspan > 0 && rowspan > 0) {
+            out.append(' ');
+        }
+        if (rowspan > 0) {
+            out.append(" rowspan='").append(rowspan).append('\'');
+        }
+
+        appendAlignment(out, batch.eltInternal(i + 2).asJavaString());
+        out.append('>');
+
+        IRubyObject content = batch.eltInternal(i + 4);
+        if (batch.eltInternal(i + 3).isTrue()) {
+            out.append(content.asJavaString());
+        } else if (content instanceof RubyArray) {
+            RubyArray<?> paragraphs = (RubyArray<?>) content;
+            for (int p = 0; p < paragraphs.getLength(); p++) {
+                IRubyObject paragraph = paragraphs.eltInternal(p);
+                if (paragraph instanceof RubyString) {
+                    ConfluenceConverter.appendParagraph(out, paragraph.asJavaString());
+                }
+            }
+        }
+
+        out.append("</td>\n");
+    }
+
+    private static void appendAlignment(StringBuilder out, String alignment) {
+
+        if (!alignment.isEmpty() && !"left".equals(alignment)) {
+            out.append(" style='text-align: ").append(alignment).append(";'");
+        }
+    }
+
+    private static void appendColumns(StringBuilder out, List<Column> columns, int tableWidth) {
+
+        int[] widths = new int[columns.size()];
+        int sum = 0;
+        for (int i = 0; i < widths.length; i++) {
+            widths[i] = columns.get(i).getWidth();
+            sum += widths[i];
+        }
+
+        for (int width : widths) {
+            out.append("<col style='").append(ConfluenceConverter.formatWidth(tableWidth * width / sum)).append("'></col>");
+        }
+    }
+
+    private static int toInt(IRubyObject value) {
+        return (int) value.convertToInteger().getLongValue();
+    }
+
+}
@@ -1,5 +1,6 @@
 package ru.kbakaras.cop.confluence;
 
+import lombok.extern.slf4j.Slf4j;
 import org.apache.http.HttpEntity;
 import org.apache.http.client.utils.URIBuilder;
 import org.apache.http.entity.ContentType;
@@ -10,24 +11,67 @@ import ru.kbakaras.cop.confluence.dto.AttachmentList;
 import ru.kbakaras.cop.confluence.dto.Content;
 import ru.kbakaras.cop.confluence.dto.ContentList;
 import ru.kbakaras.cop.confluence.dto.ContentProperty;
-import ru.kbakaras.sugar.restclient.SugarRestClient;
+import ru.kbakaras.cop.confluence.dto.ContentVersion;
+import ru.kbakaras.cop.confluence.dto.ResultList;
+import ru.kbakaras.cop.metrics.Metrics;
 
 import java.io.Closeable;
+import java.io.File;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.net.URISyntaxException;
 import java.nio.charset.StandardCharsets;
-
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+@Slf4j
 public class ConfluenceApi implements Closeable {
 
-    private static final String EXPAND_CONTENT = "body.storage,space,version,container,metadata.properties.content_appearance_published,metadata.properties.content_appearance_draft";
+    /**
+     * Количество заголовков, проверяемых одним запросом в {@link #findExistingTitles(String, Collection)}.
+     * Ограничено, чтобы не превысить допустимую длину URL.
+     */
+    private static final int TITLES_PER_REQUEST = 50;
+
+    public static final int DEFAULT_PAGE_SIZE = 100;
 
     private final String baseUrl;
-    private final SugarRestClient client;
+    private final ConfluenceTransport client;
+
+    /**
+     * Ограничение количества одновременно выполняемых запросов к Confluence.
+     */
+    private final Semaphore requests;
+
+    private final RetryPolicy retryPolicy;
+    private final RateLimiter rateLimiter;
+
+    /**
+     * Количество результатов, запрашиваемых одним запросом в списочных запросах.
+     */
+    private final int pageSize;
 
 
-    public ConfluenceApi(String baseUrl, SugarRestClient client) {
+    public ConfluenceApi(String baseUrl, ConfluenceTransport client) {
+        this(baseUrl, client, 1, RetryPolicy.NONE, new RateLimiter(0), DEFAULT_PAGE_SIZE);
+    }
+
+    public ConfluenceApi(String baseUrl, ConfluenceTransport client, int maxRequests,
+                         RetryPolicy retryPolicy, RateLimiter rateLimiter, int pageSize) {
         this.baseUrl = normalizeBaseUrl(baseUrl);
         this.client = client;
+        this.requests = new Semaphore(Math.max(maxRequests, 1), true);
+        this.retryPolicy = retryPolicy;
+        this.rateLimiter = rateLimiter;
+        this.pageSize = Math.max(pageSize, 1);
     }
 
 
@@ -37,23 +81,75 @@ public class ConfluenceApi implements Closeable {
                 .addParameter("title", pageTitle)
                 .addParameter("expand", "space,body.view,body.storage,version,container");
 
-        SugarRestClient.Response response = client.get(uriBuilder.toString());
+        ConfluenceTransport.Response response = send("findContentByTitle", () -> client.get(uriBuilder.toString()));
 
         response.assertStatusCode(200);
         return response.getEntity(ContentList.class);
     }
 
+    /**
+     * Определяет, какие из указанных заголовков уже заняты страницами в пространстве. В отличие от
+     * {@link #findContentByTitle(String, String)} проверяет сразу несколько заголовков одним
+     * CQL-запросом и не запрашивает содержимое страниц. Заголовки сравниваются без учёта регистра,
+     * как и при проверке уникальности заголовка в Confluence.
+     *
+     * @return подмножество переданных заголовков, для которых в пространстве нашлись страницы
+     */
+    public Set<String> findExistingTitles(String spaceKey, Collection<String> titles) throws URISyntaxException, IOException {
+
+        Map<String, Content> found = findContentByTitles(spaceKey, titles, null);
+
+        return titles.stream()
+                .filter(found::containsKey)
+                .collect(Collectors.toCollection(LinkedHashSet::new));
+    }
+
+    /**
+     * Находит страницы пространства по заголовкам, сразу по несколько заголовков одним CQL-запросом.
+     * Заголовки сравниваются без учёта регистра, как и при проверке уникальности заголовка в Confluence.
+     *
+     * @param expand свойства страниц, которые нужно получить, или null, если достаточно идентификатора
+     *               и заголовка
+     * @return найденные страницы по заголовкам; ключи сравниваются без учёта регистра
+     */
+    public Map<String, Content> findContentByTitles(String spaceKey, Collection<String> titles, ContentExpand expand)
+            throws URISyntaxException, IOException {
+
+        List<String> distinct = new ArrayList<>(new LinkedHashSet<>(titles));
+        Map<String, Content> found = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+
+        for (int from = 0; from < distinct.size(); from += TITLES_PER_REQUEST) {
+
+            List<String> chunk = distinct.subList(from, Math.min(from + TITLES_PER_REQUEST, distinct.size()));
+            String cql = String.format("space = %s and type = page and title in (%s)",
+                    cqlString(spaceKey),
+                    chunk.stream().map(ConfluenceApi::cqlString).collect(Collectors.joining(",")));
+
+            URIBuilder uriBuilder = new URIBuilder(baseUrl + "/rest/api/content/search")
+                    .addParameter("cql", cql);
+            if (expand != null) {
+                uriBuilder.addParameter("expand", expand.value);
+            }
+
+            for (Content content : paginate("findContentByTitles", uriBuilder, ContentList.class)) {
+                found.put(content.getTitle(), content);
+            }
+        }
+
+        return found;
+    }
+
     /**
      * Получить страницу по идентификатору. Если страница по указанному идентификатору отсутствует, возвращает null.
      */
     public Content getContentById(String contentId) throws URISyntaxException, IOException {
 
         URIBuilder uriBuilder = new URIBuilder(baseUrl + "/rest/api/content/" + contentId)
-                .addParameter("expand", EXPAND_CONTENT);
+                .addParameter("expand", ContentExpand.FULL.value);
 
-        SugarRestClient.Response response = client.get(uriBuilder.toString());
+        ConfluenceTransport.Response response = send("getContentById", () -> client.get(uriBuilder.toString()));
 
-        if (response.httpResponse.getStatusLine().getStatusCode() == 404) {
+        if (response.getStatusCode() == 404) {
             return null;
         }
 
@@ -61,71 +157,108 @@ public class ConfluenceApi implements Closeable {
         return response.getEntity(Content.class);
     }
 
-    public AttachmentList findAttachmentByContentId(String contentId) throws URISyntaxException, IOException {
+    /**
+     * Получить только номер текущей версии страницы, без её содержимого. Если страница по указанному
+     * идентификатору отсутствует, возвращает null.
+     */
+    public ContentVersion getContentVersion(String contentId) throws URISyntaxException, IOException {
+
+        URIBuilder uriBuilder = new URIBuilder(baseUrl + "/rest/api/content/" + contentId)
+                .addParameter("expand", "version");
+
+        ConfluenceTransport.Response response = send("getContentVersion", () -> client.get(uriBuilder.toString()));
+
+        if (response.getStatusCode() == 404) {
+            return null;
+        }
+
+        response.assertStatusCode(200);
+        return response.getEntity(Content.class).getVersion();
+    }
+
+    /**
+     * Вложения страницы. Список запрашивается постранично по мере обхода, см. {@link PagedResults}.
+     */
+    public PagedResults<Attachment> findAttachmentsByContentId(String contentId) throws URISyntaxException {
 
         URIBuilder uriBuilder =
                 new URIBuilder(String.format(baseUrl + "/rest/api/content/%s/child/attachment", contentId))
                         .addParameter("expand", "version");
 
-        SugarRestClient.Response response = client.get(uriBuilder.toString());
-
-        response.assertStatusCode(200);
-        return response.getEntity(AttachmentList.class);
+        return paginate("findAttachmentsByContentId", uriBuilder, AttachmentList.class);
     }
 
     public byte[] getAttachmentData(Attachment attachment) throws URISyntaxException, IOException {
         URIBuilder uriBuilder = new URIBuilder(baseUrl + attachment.getLinks().getDownload());
 
-        SugarRestClient.Response response = client.get(uriBuilder.toString());
+        ConfluenceTransport.Response response = send("getAttachmentData", () -> client.get(uriBuilder.toString()));
 
         response.assertStatusCode(200);
         return response.getEntityData();
     }
 
-    public void updateAttachmentData(String contentId, Attachment attachment, byte[] data) throws URISyntaxException, IOException {
+    public void updateAttachmentData(String contentId, Attachment attachment, File file, String comment) throws URISyntaxException, IOException {
         URIBuilder uriBuilder = new URIBuilder(String.format(
                 baseUrl + "/rest/api/content/%s/child/attachment/%s/data",
                 contentId, attachment.getId()));
         HttpEntity entity = MultipartEntityBuilder
                 .create()
-                .addBinaryBody("file", data)
+                .addBinaryBody("file", file, ContentType.DEFAULT_BINARY, attachment.getTitle())
+                .addTextBody("comment", comment, ContentType.create("text/plain", StandardCharsets.UTF_8))
+                .setMode(HttpMultipartMode.BROWSER_COMPATIBLE)
+                .setCharset(StandardCharsets.UTF_8)
                 .build();
 
-        SugarRestClient.Response response = client.post(uriBuilder.toString(), entity, "X-Atlassian-Token: nocheck");
+        ConfluenceTransport.Response response = sendNonIdempotent("updateAttachmentData", () -> client.post(uriBuilder.toString(), entity, "X-Atlassian-Token: nocheck"));
 
         response.assertStatusCode(200);
     }
 
-    public void createAttachment(String contentId, String fileName, String fileMime, byte[] data) throws URISyntaxException, IOException {
+    public void createAttachment(String contentId, String fileName, String fileMime, File file, String comment) throws URISyntaxException, IOException {
         URIBuilder uriBuilder = new URIBuilder(String.format(
                 baseUrl + "/rest/api/content/%s/child/attachment", contentId));
         HttpEntity entity = MultipartEntityBuilder
                 .create()
-                .addBinaryBody("file", data, ContentType.parse(fileMime), fileName)
+                .addBinaryBody("file", file, ContentType.parse(fileMime), fileName)
+                .addTextBody("comment", comment, ContentType.create("text/plain", StandardCharsets.UTF_8))
                 .setMode(HttpMultipartMode.BROWSER_COMPATIBLE)
                 .setCharset(StandardCharsets.UTF_8)
                 .build();
 
-        SugarRestClient.Response response = client.post(uriBuilder.toString(), entity, "X-Atlassian-Token: nocheck");
+        ConfluenceTransport.Response response = sendNonIdempotent("createAttachment", () -> client.post(uriBuilder.toString(), entity, "X-Atlassian-Token: nocheck"));
 
         response.assertStatusCode(200);
     }
 
     public Content updateContent(String contentId, Content content) throws URISyntaxException, IOException {
+        return updateContent(contentId, content, ContentExpand.FULL);
+    }
+
+    /**
+     * Обновить страницу. В ответе Confluence возвращает только свойства страницы, указанные в профиле {@code expand}.
+     */
+    public Content updateContent(String contentId, Content content, ContentExpand expand) throws URISyntaxException, IOException {
         URIBuilder uriBuilder = new URIBuilder(baseUrl + "/rest/api/content/" + contentId)
-                .addParameter("expand", EXPAND_CONTENT);
+                .addParameter("expand", expand.value);
 
-        SugarRestClient.Response response = client.put(uriBuilder.toString(), content);
+        ConfluenceTransport.Response response = sendNonIdempotent("updateContent", () -> client.put(uriBuilder.toString(), content));
 
         response.assertStatusCode(200);
         return response.getEntity(Content.class);
     }
 
     public Content createContent(Content content) throws URISyntaxException, IOException {
+        return createContent(content, ContentExpand.FULL);
+    }
+
+    /**
+     * Создать страницу. В ответе Confluence возвращает только свойства страницы, указанные в профиле {@code expand}.
+     */
+    public Content createContent(Content content, ContentExpand expand) throws URISyntaxException, IOException {
         URIBuilder uriBuilder = new URIBuilder(baseUrl + "/rest/api/content")
-                .addParameter("expand", EXPAND_CONTENT);
+                .addParameter("expand", expand.value);
 
-        SugarRestClient.Response response = client.post(uriBuilder.toString(), content);
+        ConfluenceTransport.Response response = sendNonIdempotent("createContent", () -> client.post(uriBuilder.toString(), content));
 
         response.assertStatusCode(200);
         return response.getEntity(Content.class);
@@ -135,7 +268,7 @@ public class ConfluenceApi implements Closeable {
 
         URIBuilder uriBuilder = new URIBuilder(baseUrl + "/rest/api/content/" + contentId + "/property/" + property.getKey());
 
-        SugarRestClient.Response response = client.put(uriBuilder.toString(), property);
+        ConfluenceTransport.Response response = sendNonIdempotent("updateProperty", () -> client.put(uriBuilder.toString(), property));
 
         response.assertStatusCode(200);
     }
@@ -161,19 +294,142 @@ public class ConfluenceApi implements Closeable {
 
         URIBuilder uriBuilder = new URIBuilder(baseUrl + "/rest/api/content/" + contentId);
 
-        SugarRestClient.Response response = client.delete(uriBuilder.toString());
+        ConfluenceTransport.Response response = sendNonIdempotent("trashContentById", () -> client.delete(uriBuilder.toString()));
 
         response.assertStatusCode(204);
     }
 
+    /**
+     * Окончательное удаление страницы из корзины. Повторное удаление безопасно, поэтому запрос
+     * повторяется как идемпотентный, в том числе после статуса 500, который Confluence иногда
+     * возвращает на этом запросе. Статус 404 означает, что страницы в корзине уже нет, например
+     * потому, что её удалила предыдущая попытка, ответ на которую был потерян.
+     */
     public void purgeContentById(String contentId) throws URISyntaxException, IOException {
 
         URIBuilder uriBuilder = new URIBuilder(baseUrl + "/rest/api/content/" + contentId)
                 .addParameter("status", "trashed");
 
-        SugarRestClient.Response response = client.delete(uriBuilder.toString());
+        ConfluenceTransport.Response response = send("purgeContentById", () -> client.delete(uriBuilder.toString()));
 
-        response.assertStatusCode(204);
+        if (response.getStatusCode() != 404) {
+            response.assertStatusCode(204);
+        }
+    }
+
+    /**
+     * Постраничное получение результатов списочного запроса. Размер страницы задаётся параметром
+     * {@code limit} первого запроса, последующие запросы выполняются по ссылкам из ответов.
+     */
+    private <R> PagedResults<R> paginate(String operation, URIBuilder firstPage, Class<? extends ResultList<R>> pageType)
+            throws URISyntaxException {
+
+        String firstPageUri = firstPage
+                .setParameter("limit", String.valueOf(pageSize))
+                .build()
+                .toString();
+
+        return new PagedResults<>(firstPageUri, baseUrl, uri -> {
+            ConfluenceTransport.Response response = send(operation, () -> client.get(uri));
+
+            response.assertStatusCode(200);
+            return response.getEntity(pageType);
+        });
+    }
+
+    /**
+     * Все идемпотентные запросы к Confluence (GET и удаление страницы из корзины) выполняются через этот метод.
+     */
+    private ConfluenceTransport.Response send(String operation, Request request) throws URISyntaxException, IOException {
+        return send(operation, true, request);
+    }
+
+    /**
+     * Все неидемпотентные запросы к Confluence выполняются через этот метод. Такие запросы
+     * повторяются, только если известно, что сервер их не выполнял.
+     * <p>
+     * Кроме POST, неидемпотентны и изменяющие PUT и DELETE: обновление страницы или свойства передаёт
+     * следующий номер версии, и если первая попытка была выполнена, повтор получит 409, а повторное
+     * удаление — 404, хотя операция на самом деле выполнена.
+     */
+    private ConfluenceTransport.Response sendNonIdempotent(String operation, Request request) throws URISyntaxException, IOException {
+        return send(operation, false, request);
+    }
+
+    /**
+     * Выполняет запрос с учётом ограничений частоты и количества одновременно выполняемых запросов.
+     * Если количество выполняемых запросов достигло ограничения, поток ожидает завершения одного из них.
+     * Запрос, завершившийся временной ошибкой, повторяется по правилам {@link RetryPolicy}. На время
+     * паузы перед повтором место в ограничении одновременных запросов освобождается.
+     * <p>
+     * Длительность каждой попытки учитывается в метриках этапа {@code api.<operation>}, включая
+     * ожидание места в ограничениях, но без пауз перед повторами.
+     *
+     * @param operation имя метода API для метрик
+     */
+    private ConfluenceTransport.Response send(String operation, boolean idempotent, Request request)
+            throws URISyntaxException, IOException {
+
+        for (int attempt = 1; ; attempt++) {
+
+            ConfluenceTransport.Response response = null;
+            IOException failure = null;
+
+            try (Metrics.Sample ignored = Metrics.start("api." + operation)) {
+
+                try {
+                    rateLimiter.acquire();
+                    requests.acquire();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting for a free request slot");
+                }
+
+                try {
+                    response = request.execute();
+                    rateLimiter.onResponse(response);
+                } catch (IOException e) {
+                    failure = e;
+                } finally {
+                    requests.release();
+                }
+            }
+
+            boolean retryable = response != null
+                    ? retryPolicy.isRetryable(response, idempotent)
+                    : retryPolicy.isRetryable(failure, idempotent);
+
+            if (!retryable || !retryPolicy.canRetry(attempt) || Thread.currentThread().isInterrupted()) {
+                if (failure != null) {
+                    throw failure;
+                }
+                return response;
+            }
+
+            Metrics.count("http.retries", 1);
+            long delay = retryPolicy.delay(attempt, response);
+            log.warn("{}, retrying in {} ms (attempt {} of {})",
+                    response != null
+                            ? response.getRequest() + ": status " + response.getStatusCode()
+                            : failure.toString(),
+                    delay, attempt + 1, retryPolicy.getMaxAttempts());
+
+            try {
+                TimeUnit.MILLISECONDS.sleep(delay);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting to retry a request");
+            }
+        }
+    }
+
+    @FunctionalInterface
+    private interface Request {
+        ConfluenceTransport.Response execute() throws URISyntaxException, IOException;
+    }
+
+    private static String cqlString(String value) {
+        return "\"" + value.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
     }
 
     private static String normalizeBaseUrl(String url) {
@@ -183,8 +439,12 @@ public class ConfluenceApi implements Closeable {
     }
 
 
+    public ConfluenceTransport.Statistics getTransportStatistics() {
+        return client.getStatistics();
+    }
+
     @Override
-    public void close() {
+    public void close() throws IOException {
         client.close();
     }
 
@@ -0,0 +1,20 @@
+package ru.kbakaras.cop.confluence;
+
+/**
+ * Confluence ответил на запрос статусом, отличным от ожидаемого.
+ */
+public class ConfluenceStatusException extends RuntimeException {
+
+    private final int statusCode;
+
+    public ConfluenceStatusException(String request, int statusCode, int expectedStatusCode, String body) {
+        super(String.format("%s: unexpected status %d (expected %d)%s",
+                request, statusCode, expectedStatusCode, body.isEmpty() ? "" : "\n" + body));
+        this.statusCode = statusCode;
+    }
+
+    public int getStatusCode() {
+        return statusCode;
+    }
+
+}
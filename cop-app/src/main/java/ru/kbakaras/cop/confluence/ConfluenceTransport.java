@@ -0,0 +1,350 @@
+package ru.kbakaras.cop.confluence;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.apache.commons.io.output.CountingOutputStream;
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpHeaders;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpDelete;
+import org.apache.http.client.methods.HttpEntityEnclosingRequestBase;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpPut;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.PlainConnectionSocketFactory;
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
+import org.apache.http.entity.AbstractHttpEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.HttpEntityWrapper;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.ManagedHttpClientConnectionFactory;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.pool.PoolStats;
+import org.apache.http.util.EntityUtils;
+import ru.kbakaras.cop.metrics.Metrics;
+import ru.kbakaras.sugar.lazy.Lazy;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Транспорт для обращения к REST API Confluence. Все запросы выполняются через общий пул соединений,
+ * поэтому соединения (и установленные TLS-сессии) повторно используются запросами всех потоков
+ * в течение всего запуска.
+ * <p>
+ * Соединения, простаивающие дольше заданного времени, закрываются фоновым потоком, чтобы
+ * не пытаться использовать соединения, уже закрытые на стороне сервера или прокси.
+ * <p>
+ * Транспорт собирает статистику пула: количество открытых за время работы соединений,
+ * а также наибольшее наблюдавшееся количество занятых соединений и ожидающих соединения запросов.
+ */
+public class ConfluenceTransport implements Closeable {
+
+    private static final Lazy<ObjectMapper> JSON_MAPPER = Lazy
+            .of(() -> new ObjectMapper()
+                    .setSerializationInclusion(JsonInclude.Include.NON_NULL)
+                    .configure(JsonGenerator.Feature.AUTO_CLOSE_TARGET, false));
+
+    private final String authorization;
+    private final PoolingHttpClientConnectionManager connectionManager;
+    private final CloseableHttpClient client;
+
+    private final AtomicInteger connectionsOpened = new AtomicInteger();
+    private final AtomicLong requestsExecuted = new AtomicLong();
+    private final AtomicInteger peakLeased = new AtomicInteger();
+    private final AtomicInteger peakPending = new AtomicInteger();
+
+
+    /**
+     * @param maxConnections    наибольшее количество соединений с сервером Confluence
+     * @param connectTimeout    время ожидания установки соединения, в секундах
+     * @param socketTimeout     время ожидания данных от сервера, в секундах
+     * @param idleTimeout       время простоя, после которого соединение закрывается, в секундах
+     */
+    public ConfluenceTransport(String login, String password,
+                               int maxConnections, int connectTimeout, int socketTimeout, int idleTimeout) {
+
+        this.authorization = "Basic " + Base64.getEncoder()
+                .encodeToString((login + ":" + password).getBytes(StandardCharsets.UTF_8));
+
+        this.connectionManager = new PoolingHttpClientConnectionManager(
+                RegistryBuilder.<ConnectionSocketFactory>create()
+                        .register("http", PlainConnectionSocketFactory.getSocketFactory())
+                        .register("https", SSLConnectionSocketFactory.getSocketFactory())
+                        .build(),
+                (route, config) -> {
+                    connectionsOpened.incrementAndGet();
+                    return ManagedHttpClientConnectionFactory.INSTANCE.create(route, config);
+                });
+
+        // Все запросы идут на один сервер, поэтому ограничение на маршрут совпадает с общим.
+        connectionManager.setMaxTotal(Math.max(maxConnections, 1));
+        connectionManager.setDefaultMaxPerRoute(Math.max(maxConnections, 1));
+        connectionManager.setValidateAfterInactivity(1000);
+
+        this.client = HttpClients.custom()
+                .setConnectionManager(connectionManager)
+                .setDefaultRequestConfig(RequestConfig.custom()
+                        .setConnectTimeout((int) TimeUnit.SECONDS.toMillis(connectTimeout))
+                        .setSocketTimeout((int) TimeUnit.SECONDS.toMillis(socketTimeout))
+                        .build())
+                // Повторы запросов выполняются централизованно, в ConfluenceApi.
+                .disableAutomaticRetries()
+                .evictExpiredConnections()
+                .evictIdleConnections(idleTimeout, TimeUnit.SECONDS)
+                .build();
+    }
+
+
+    public Response get(String uri) throws IOException {
+        return execute(new HttpGet(uri));
+    }
+
+    public Response delete(String uri) throws IOException {
+        return execute(new HttpDelete(uri));
+    }
+
+    public Response put(String uri, Object body) throws IOException {
+        return execute(withJson(new HttpPut(uri), body));
+    }
+
+    public Response post(String uri, Object body) throws IOException {
+        return execute(withJson(new HttpPost(uri), body));
+    }
+
+    /**
+     * Отправка произвольного содержимого (например, multipart при загрузке вложений).
+     *
+     * @param headers дополнительные заголовки запроса в виде {@code "Name: value"}
+     */
+    public Response post(String uri, HttpEntity entity, String... headers) throws IOException {
+
+        HttpPost request = new HttpPost(uri);
+        request.setEntity(entity);
+        for (String header : headers) {
+            String[] parts = header.split(":\\s*", 2);
+            request.setHeader(parts[0], parts[1]);
+        }
+
+        return execute(request);
+    }
+
+
+    private HttpUriRequest withJson(HttpEntityEnclosingRequestBase request, Object body) {
+        request.setEntity(new JsonEntity(body));
+        return request;
+    }
+
+    private Response execute(HttpUriRequest request) throws IOException {
+
+        request.setHeader(HttpHeaders.AUTHORIZATION, authorization);
+
+        if (request instanceof HttpEntityEnclosingRequest) {
+            HttpEntityEnclosingRequest enclosingRequest = (HttpEntityEnclosingRequest) request;
+            if (enclosingRequest.getEntity() != null) {
+                enclosingRequest.setEntity(new CountingEntity(enclosingRequest.getEntity()));
+            }
+        }
+
+        peakPending.accumulateAndGet(connectionManager.getTotalStats().getPending(), Math::max);
+        requestsExecuted.incrementAndGet();
+
+        try (CloseableHttpResponse response = client.execute(request)) {
+            // Пока ответ не зачитан, соединение этого запроса ещё занято и учитывается в статистике.
+            peakLeased.accumulateAndGet(connectionManager.getTotalStats().getLeased(), Math::max);
+
+            // Содержимое ответа зачитывается полностью, чтобы соединение сразу вернулось в пул.
+            byte[] data = response.getEntity() != null
+                    ? EntityUtils.toByteArray(response.getEntity())
+                    : new byte[0];
+
+            Metrics.count("http.requests", 1);
+            Metrics.count("http.bytes.received", data.length);
+
+            return new Response(request.getMethod() + " " + request.getURI(),
+                    response.getStatusLine().getStatusCode(), response.getAllHeaders(), data);
+        }
+    }
+
+
+    public Statistics getStatistics() {
+
+        PoolStats stats = connectionManager.getTotalStats();
+        return new Statistics(requestsExecuted.get(), connectionsOpened.get(),
+                stats.getLeased(), stats.getAvailable(), stats.getPending(), stats.getMax(),
+                peakLeased.get(), peakPending.get());
+    }
+
+    @Override
+    public void close() throws IOException {
+        client.close();
+    }
+
+
+    public static final class Response {
+
+        private final String request;
+        private final int statusCode;
+        private final Header[] headers;
+        private final byte[] data;
+
+        private Response(String request, int statusCode, Header[] headers, byte[] data) {
+            this.request = request;
+            this.statusCode = statusCode;
+            this.headers = headers;
+            this.data = data;
+        }
+
+        /**
+         * Метод и адрес запроса, на который получен ответ.
+         */
+        public String getRequest() {
+            return request;
+        }
+
+        public int getStatusCode() {
+            return statusCode;
+        }
+
+        public Optional<String> getHeader(String name) {
+            for (Header header : headers) {
+                if (header.getName().equalsIgnoreCase(name)) {
+                    return Optional.of(header.getValue());
+                }
+            }
+            return Optional.empty();
+        }
+
+        public void assertStatusCode(int expected) {
+            if (statusCode != expected) {
+                throw new ConfluenceStatusException(request, statusCode, expected,
+                        new String(data, StandardCharsets.UTF_8));
+            }
+        }
+
+        public <T> T getEntity(Class<T> type) throws IOException {
+            return JSON_MAPPER.get().readValue(data, type);
+        }
+
+        public byte[] getEntityData() {
+            return data;
+        }
+    }
+
+    /**
+     * Статистика работы транспорта. Текущие значения пула (занятые, свободные и ожидающие) на момент
+     * завершения работы обычно нулевые, поэтому дополнительно приводятся наибольшие значения за запуск.
+     */
+    public static final class Statistics {
+
+        public final long requests;
+        public final int opened;
+        public final int leased;
+        public final int available;
+        public final int pending;
+        public final int max;
+        public final int peakLeased;
+        public final int peakPending;
+
+        private Statistics(long requests, int opened, int leased, int available, int pending, int max,
+                           int peakLeased, int peakPending) {
+            this.requests = requests;
+            this.opened = opened;
+            this.leased = leased;
+            this.available = available;
+            this.pending = pending;
+            this.max = max;
+            this.peakLeased = peakLeased;
+            this.peakPending = peakPending;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(
+                    "%d request(s) over %d opened connection(s); pool: leased %d, available %d, pending %d, max %d; peak leased %d, peak pending %d",
+                    requests, opened, leased, available, pending, max, peakLeased, peakPending);
+        }
+    }
+
+
+    /**
+     * Тело запроса в формате JSON, которое сериализуется прямо в поток соединения при отправке запроса.
+     * Тело целиком в памяти не собирается и передаётся без заголовка {@code Content-Length}, частями
+     * (chunked). При повторе запроса объект сериализуется заново.
+     */
+    private static class JsonEntity extends AbstractHttpEntity {
+
+        private final Object body;
+
+        JsonEntity(Object body) {
+            this.body = body;
+            setContentType(ContentType.APPLICATION_JSON.toString());
+            setChunked(true);
+        }
+
+        @Override
+        public boolean isRepeatable() {
+            return true;
+        }
+
+        @Override
+        public long getContentLength() {
+            return -1;
+        }
+
+        @Override
+        public InputStream getContent() throws IOException {
+            return new ByteArrayInputStream(JSON_MAPPER.get().writeValueAsBytes(body));
+        }
+
+        @Override
+        public void writeTo(OutputStream out) throws IOException {
+            JSON_MAPPER.get().writeValue(out, body);
+            out.flush();
+        }
+
+        @Override
+        public boolean isStreaming() {
+            return false;
+        }
+    }
+
+    /**
+     * Тело запроса, учитывающее количество отправленных байт в метриках ({@code http.bytes.sent}).
+     */
+    private static class CountingEntity extends HttpEntityWrapper {
+
+        CountingEntity(HttpEntity entity) {
+            super(entity);
+        }
+
+        @Override
+        public void writeTo(OutputStream out) throws IOException {
+
+            CountingOutputStream counting = new CountingOutputStream(out);
+            try {
+                super.writeTo(counting);
+            } finally {
+                Metrics.count("http.bytes.sent", counting.getByteCount());
+            }
+        }
+    }
+
+}
@@ -0,0 +1,41 @@
+package ru.kbakaras.cop.confluence;
+
+/**
+ * Профили параметра {@code expand} для запросов страниц. Каждый запрос получает от Confluence
+ * только те свойства страницы, которые нужны вызывающей стороне. Прежде всего это касается
+ * содержимого страницы: его передача обходится дороже всего остального.
+ */
+public enum ContentExpand {
+
+    /**
+     * Всё, что нужно для сравнения и обновления страницы: содержимое, пространство, версия
+     * и режим отображения.
+     */
+    FULL("body.storage,space,version,container,"
+            + "metadata.properties.content_appearance_published,metadata.properties.content_appearance_draft"),
+
+    /**
+     * Версия и предки страницы, без содержимого. Позволяет определить положение страницы в иерархии.
+     */
+    LOCATION("version,ancestors"),
+
+    /**
+     * Только версия и режим отображения, без содержимого. Достаточно для ответа на запись страницы.
+     */
+    METADATA("version,"
+            + "metadata.properties.content_appearance_published,metadata.properties.content_appearance_draft"),
+
+    /**
+     * Версия, режим отображения и содержимое. Используется, когда после записи нужно сверить
+     * сохранённое Confluence содержимое с отправленным.
+     */
+    VERIFY(METADATA.value + ",body.storage");
+
+
+    final String value;
+
+    ContentExpand(String value) {
+        this.value = value;
+    }
+
+}
@@ -0,0 +1,86 @@
+package ru.kbakaras.cop.confluence;
+
+import lombok.SneakyThrows;
+import ru.kbakaras.cop.confluence.dto.Links;
+import ru.kbakaras.cop.confluence.dto.ResultList;
+
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Optional;
+
+/**
+ * Результаты списочного запроса к Confluence, получаемые постранично. Очередная страница запрашивается
+ * только тогда, когда при обходе исчерпаны результаты предыдущей, а переход к следующей странице
+ * выполняется по ссылке {@code _links.next} из ответа. Поэтому в памяти одновременно находится не более
+ * одной страницы результатов, а обход можно прервать, не запрашивая оставшиеся страницы.
+ * <p>
+ * Каждый вызов {@link #iterator()} выполняет обход заново, начиная с первой страницы. Ошибки запросов
+ * выбрасываются из методов итератора как есть, в том числе проверяемые {@link IOException}
+ * и {@link URISyntaxException}.
+ */
+public class PagedResults<R> implements Iterable<R> {
+
+    private final String firstPageUri;
+    private final String baseUrl;
+    private final PageLoader<R> loader;
+
+
+    PagedResults(String firstPageUri, String baseUrl, PageLoader<R> loader) {
+        this.firstPageUri = firstPageUri;
+        this.baseUrl = baseUrl;
+        this.loader = loader;
+    }
+
+
+    @Override
+    public Iterator<R> iterator() {
+        return new Iterator<R>() {
+
+            private String nextPageUri = firstPageUri;
+            private R[] page;
+            private int index;
+
+            @Override
+            public boolean hasNext() {
+
+                while ((page == null || index >= page.length) && nextPageUri != null) {
+                    load();
+                }
+                return page != null && index < page.length;
+            }
+
+            @Override
+            public R next() {
+
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return page[index++];
+            }
+
+            @SneakyThrows({URISyntaxException.class, IOException.class})
+            private void load() {
+
+                ResultList<R> resultList = loader.load(nextPageUri);
+
+                page = resultList.getResults();
+                index = 0;
+
+                // Ссылка на следующую страницу задаётся относительно базового адреса Confluence.
+                nextPageUri = Optional.ofNullable(resultList.getLinks())
+                        .map(Links::getNext)
+                        .map(next -> next.startsWith("/") ? baseUrl + next : next)
+                        .orElse(null);
+            }
+        };
+    }
+
+
+    @FunctionalInterface
+    interface PageLoader<R> {
+        ResultList<R> load(String uri) throws URISyntaxException, IOException;
+    }
+
+}
@@ -0,0 +1,136 @@
+package ru.kbakaras.cop.confluence;
+
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Ограничитель частоты запросов к Confluence по схеме «корзины маркеров» (token bucket).
+ * <p>
+ * Частота подстраивается под сервер. Если сервер отвечает статусом 429, частота снижается
+ * до объявленной сервером в заголовках {@code X-RateLimit-FillRate} и {@code X-RateLimit-Interval-Seconds},
+ * а если таких заголовков нет, то вдвое от фактической. После каждого успешного запроса частота
+ * понемногу растёт, пока сервер не сообщит о приближении к лимиту ({@code X-RateLimit-NearLimit})
+ * или пока она не достигнет заданного потолка. Без потолка ограничение снимается совсем, когда
+ * частота становится заведомо выше достижимой.
+ * <p>
+ * Пока сервер ни разу не ответил статусом 429 и потолок не задан, запросы не ограничиваются.
+ */
+public class RateLimiter {
+
+    private static final double MIN_RATE = 0.1;
+    private static final double UNLIMITED_RATE = 1000;
+    private static final int RECENT_SIZE = 32;
+
+    private final double ceiling;
+
+    /**
+     * Текущая частота, запросов в секунду. Ноль означает отсутствие ограничения.
+     */
+    private double rate;
+    private double tokens;
+    private long refilledAt = System.nanoTime();
+
+    /**
+     * Моменты последних запросов, по которым оценивается фактическая частота.
+     */
+    private final long[] recent = new long[RECENT_SIZE];
+    private long recentCount;
+
+
+    /**
+     * @param ceiling наибольшая частота запросов в секунду. Ноль означает, что потолок не задан.
+     */
+    public RateLimiter(double ceiling) {
+        this.ceiling = Math.max(ceiling, 0);
+        this.rate = this.ceiling;
+        this.tokens = Math.max(this.ceiling, 1);
+    }
+
+
+    /**
+     * Ожидает, пока частота запросов позволит выполнить очередной запрос.
+     */
+    void acquire() throws InterruptedException {
+
+        long wait;
+
+        synchronized (this) {
+            long now = System.nanoTime();
+            recent[(int) (recentCount++ % RECENT_SIZE)] = now;
+
+            if (rate == 0) {
+                return;
+            }
+
+            tokens = Math.min(Math.max(rate, 1), tokens + (now - refilledAt) * rate / TimeUnit.SECONDS.toNanos(1));
+            refilledAt = now;
+
+            // Маркер резервируется сразу, даже если его ещё нет: так ожидающие потоки выстраиваются в очередь.
+            tokens -= 1;
+            wait = tokens >= 0 ? 0 : (long) (-tokens / rate * TimeUnit.SECONDS.toNanos(1));
+        }
+
+        if (wait > 0) {
+            TimeUnit.NANOSECONDS.sleep(wait);
+        }
+    }
+
+    /**
+     * Подстраивает частоту по ответу сервера.
+     */
+    synchronized void onResponse(ConfluenceTransport.Response response) {
+
+        if (response.getStatusCode() == 429) {
+            rate = Math.max(MIN_RATE, serverRate(response).orElseGet(() -> currentRate() / 2));
+            tokens = Math.min(tokens, 0);
+
+        } else if (rate > 0 && response.getStatusCode() < 400
+                && !response.getHeader("X-RateLimit-NearLimit").map(Boolean::parseBoolean).orElse(false)) {
+
+            // Аддитивный рост: примерно на один запрос в секунду за каждую секунду работы без замечаний.
+            rate += Math.min(1 / rate, rate);
+            if (ceiling > 0) {
+                rate = Math.min(rate, ceiling);
+            } else if (rate > UNLIMITED_RATE) {
+                rate = 0;
+            }
+        }
+    }
+
+    synchronized double getRate() {
+        return rate;
+    }
+
+
+    private double currentRate() {
+
+        if (rate > 0) {
+            return rate;
+        }
+
+        int count = (int) Math.min(recentCount, RECENT_SIZE);
+        if (count < 2) {
+            return 1;
+        }
+
+        long newest = recent[(int) ((recentCount - 1) % RECENT_SIZE)];
+        long oldest = recent[(int) ((recentCount - count) % RECENT_SIZE)];
+        return (count - 1) * (double) TimeUnit.SECONDS.toNanos(1) / Math.max(newest - oldest, 1);
+    }
+
+    private static Optional<Double> serverRate(ConfluenceTransport.Response response) {
+
+        try {
+            Optional<Double> fillRate = response.getHeader("X-RateLimit-FillRate").map(Double::parseDouble);
+            Optional<Double> interval = response.getHeader("X-RateLimit-Interval-Seconds").map(Double::parseDouble);
+
+            return fillRate.flatMap(fill -> interval
+                    .filter(seconds -> seconds > 0)
+                    .map(seconds -> fill / seconds));
+
+        } catch (NumberFormatException e) {
+            return Optional.empty();
+        }
+    }
+
+}
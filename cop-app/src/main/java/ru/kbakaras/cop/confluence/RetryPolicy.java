@@ -0,0 +1,111 @@
+package ru.kbakaras.cop.confluence;
+
+import org.apache.http.client.utils.DateUtils;
+import org.apache.http.conn.ConnectTimeoutException;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.util.Date;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Правила повторного выполнения запросов к Confluence, завершившихся временной ошибкой.
+ * <p>
+ * Повторяются запросы, получившие статус 429 (превышен лимит запросов) или 503 (сервис временно
+ * недоступен): в этих случаях Confluence запрос не выполнял. Статусы 500, 502, 504 и ошибки
+ * ввода-вывода означают, что запрос мог быть выполнен, поэтому повторяются только идемпотентные
+ * запросы (GET и окончательное удаление страницы из корзины). Неидемпотентный запрос (POST, а также PUT и DELETE, изменяющие версию страницы)
+ * при ошибке ввода-вывода повторяется, только если соединение не удалось установить.
+ * <p>
+ * Пауза перед повтором растёт экспоненциально и содержит случайную составляющую, чтобы параллельные
+ * потоки не повторяли запросы одновременно. Если сервер указал в заголовке {@code Retry-After},
+ * когда повторять запрос, пауза будет не меньше указанной.
+ */
+public class RetryPolicy {
+
+    public static final RetryPolicy NONE = new RetryPolicy(1, 0, 0);
+
+    private final int maxAttempts;
+    private final long baseDelay;
+    private final long maxDelay;
+
+
+    /**
+     * @param maxAttempts наибольшее количество попыток выполнения запроса, включая первую
+     * @param baseDelay   пауза перед первым повтором, в миллисекундах
+     * @param maxDelay    наибольшая пауза, вычисляемая без учёта {@code Retry-After}, в миллисекундах
+     */
+    public RetryPolicy(int maxAttempts, long baseDelay, long maxDelay) {
+        this.maxAttempts = Math.max(maxAttempts, 1);
+        this.baseDelay = baseDelay;
+        this.maxDelay = Math.max(maxDelay, baseDelay);
+    }
+
+
+    boolean canRetry(int attempt) {
+        return attempt < maxAttempts;
+    }
+
+    int getMaxAttempts() {
+        return maxAttempts;
+    }
+
+    boolean isRetryable(ConfluenceTransport.Response response, boolean idempotent) {
+
+        switch (response.getStatusCode()) {
+            case 429:
+            case 503:
+                return true;
+            case 500:
+            case 502:
+            case 504:
+                return idempotent;
+            default:
+                return false;
+        }
+    }
+
+    boolean isRetryable(IOException exception, boolean idempotent) {
+        return idempotent
+                || exception instanceof ConnectException
+                || exception instanceof ConnectTimeoutException;
+    }
+
+    /**
+     * Пауза перед повтором после попытки с номером {@code attempt} (нумерация с единицы).
+     *
+     * @param response ответ сервера или null, если запрос завершился ошибкой ввода-вывода
+     */
+    long delay(int attempt, ConfluenceTransport.Response response) {
+
+        long backoff = Math.min(maxDelay, baseDelay << Math.min(attempt - 1, 30));
+        long delay = backoff / 2 + ThreadLocalRandom.current().nextLong(backoff / 2 + 1);
+
+        if (response != null) {
+            delay = Math.max(delay, retryAfter(response));
+        }
+
+        return delay;
+    }
+
+    /**
+     * Значение заголовка {@code Retry-After} в миллисекундах. Заголовок может содержать как количество
+     * секунд, так и дату в формате HTTP.
+     */
+    private static long retryAfter(ConfluenceTransport.Response response) {
+
+        return response.getHeader("Retry-After")
+                .map(String::trim)
+                .map(value -> {
+                    if (value.matches("\\d+")) {
+                        return TimeUnit.SECONDS.toMillis(Long.parseLong(value));
+                    }
+
+                    Date date = DateUtils.parseDate(value);
+                    return date != null ? date.getTime() - System.currentTimeMillis() : 0L;
+                })
+                .orElse(0L);
+    }
+
+}
@@ -1,14 +1,23 @@
 package ru.kbakaras.cop.confluence.dto;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
-import lombok.AllArgsConstructor;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.io.JsonStringEncoder;
+import com.fasterxml.jackson.databind.SerializerProvider;
+import com.fasterxml.jackson.databind.annotation.JsonSerialize;
+import com.fasterxml.jackson.databind.ser.std.StdSerializer;
 import lombok.Data;
 import lombok.NoArgsConstructor;
 
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.CharBuffer;
+
 @Data
 @NoArgsConstructor
-@AllArgsConstructor
 @JsonIgnoreProperties(ignoreUnknown = true)
+@JsonSerialize(using = ContentBodyValue.Serializer.class)
 public class ContentBodyValue {
 
     public static final String REPRESENTATION_Storage = "storage";
@@ -17,4 +26,143 @@ public class ContentBodyValue {
     private String value;
     private String representation;
 
+    /**
+     * Источник значения, записываемого в запрос потоком, без промежуточной строки. Если задан,
+     * используется при сериализации вместо {@link #value}.
+     */
+    @JsonIgnore
+    private ValueWriter valueWriter;
+
+
+    public ContentBodyValue(String value, String representation) {
+        this.value = value;
+        this.representation = representation;
+    }
+
+    /**
+     * Значение, которое при отправке в Confluence записывается в тело запроса потоком. Содержимое
+     * большой страницы при этом не копируется ни в строку, ни в промежуточный JSON.
+     */
+    public static ContentBodyValue streamed(ValueWriter valueWriter, String representation) {
+
+        ContentBodyValue contentBodyValue = new ContentBodyValue(null, representation);
+        contentBodyValue.setValueWriter(valueWriter);
+        return contentBodyValue;
+    }
+
+
+    @FunctionalInterface
+    public interface ValueWriter {
+        void writeTo(Writer writer) throws IOException;
+    }
+
+
+    /**
+     * Сериализация значения с записью {@link #valueWriter} прямо в генератор JSON. Символы экранируются
+     * так же, как при записи строки генератором, поэтому результат не отличается от сериализации
+     * {@link #value} с тем же содержимым.
+     */
+    static class Serializer extends StdSerializer<ContentBodyValue> {
+
+        Serializer() {
+            super(ContentBodyValue.class);
+        }
+
+        @Override
+        public void serialize(ContentBodyValue bodyValue, JsonGenerator generator, SerializerProvider provider)
+                throws IOException {
+
+            generator.writeStartObject();
+
+            if (bodyValue.valueWriter != null) {
+                generator.writeFieldName("value");
+                // Открывающая кавычка записывается как значение, чтобы генератор учёл поле как заполненное.
+                generator.writeRawValue("\"");
+                try (JsonStringWriter writer = new JsonStringWriter(generator)) {
+                    bodyValue.valueWriter.writeTo(writer);
+                }
+                generator.writeRaw('"');
+
+            } else if (bodyValue.value != null) {
+                generator.writeStringField("value", bodyValue.value);
+            }
+
+            if (bodyValue.representation != null) {
+                generator.writeStringField("representation", bodyValue.representation);
+            }
+
+            generator.writeEndObject();
+        }
+    }
+
+    /**
+     * Поток, записывающий символы в генератор JSON с экранированием как содержимое строки.
+     * Старшая половина суррогатной пары в конце записанного придерживается до следующей записи:
+     * генератор не принимает пару, разделённую между вызовами.
+     */
+    private static class JsonStringWriter extends Writer {
+
+        private static final int CHUNK_SIZE = 8192;
+
+        private final JsonGenerator generator;
+        private final JsonStringEncoder encoder = JsonStringEncoder.getInstance();
+        private final StringBuilder escaped = new StringBuilder();
+        private char pendingHighSurrogate;
+
+        JsonStringWriter(JsonGenerator generator) {
+            this.generator = generator;
+        }
+
+        @Override
+        public void write(char[] buffer, int offset, int length) throws IOException {
+            write(CharBuffer.wrap(buffer, offset, length));
+        }
+
+        @Override
+        public void write(String str, int offset, int length) throws IOException {
+            // Writer по умолчанию копирует длинную строку в массив целиком, поэтому строка передаётся частями.
+            write(CharBuffer.wrap(str, offset, offset + length));
+        }
+
+        private void write(CharBuffer chars) throws IOException {
+
+            while (chars.hasRemaining()) {
+
+                int end = Math.min(chars.remaining(), CHUNK_SIZE);
+                CharSequence chunk = chars.subSequence(0, end);
+                chars.position(chars.position() + end);
+
+                escaped.setLength(0);
+                if (pendingHighSurrogate != 0) {
+                    chunk = pendingHighSurrogate + chunk.toString();
+                    pendingHighSurrogate = 0;
+                }
+
+                int length = chunk.length();
+                if (Character.isHighSurrogate(chunk.charAt(length - 1))) {
+                    pendingHighSurrogate = chunk.charAt(length - 1);
+                    length--;
+                }
+
+                encoder.quoteAsString(chunk.subSequence(0, length), escaped);
+                generator.writeRaw(escaped.toString());
+            }
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void close() throws IOException {
+
+            if (pendingHighSurrogate != 0) {
+                escaped.setLength(0);
+                encoder.quoteAsString(String.valueOf(pendingHighSurrogate), escaped);
+                generator.writeRaw(escaped.toString());
+                pendingHighSurrogate = 0;
+            }
+        }
+    }
+
 }
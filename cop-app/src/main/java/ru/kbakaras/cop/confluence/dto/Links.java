@@ -12,4 +12,9 @@ public class Links {
     private String thumbnail;
     private String self;
 
+    /**
+     * Ссылка на следующую страницу результатов в ответах со списками. Отсутствует на последней странице.
+     */
+    private String next;
+
 }
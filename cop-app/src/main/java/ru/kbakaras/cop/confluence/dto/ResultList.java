@@ -1,6 +1,7 @@
 package ru.kbakaras.cop.confluence.dto;
 
 import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.annotation.JsonProperty;
 import lombok.Data;
 
 @Data
@@ -11,4 +12,7 @@ public class ResultList<R> {
     private int start;
     private int limit;
     private int size;
+
+    @JsonProperty(value = "_links")
+    private Links links;
 }
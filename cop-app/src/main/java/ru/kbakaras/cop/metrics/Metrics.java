@@ -0,0 +1,266 @@
+package ru.kbakaras.cop.metrics;
+
+import java.io.File;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Метрики запуска: длительность этапов обработки (таймеры) и счётчики.
+ * <p>
+ * Этап замеряется блоком {@code try (Metrics.Sample ignored = Metrics.start("phase")) {...}}. Замер
+ * стоит двух вызовов {@link System#nanoTime()} и нескольких атомарных операций без блокировок, поэтому метрики
+ * собираются всегда, а выводятся только по запросу (см. {@link MetricsReport}).
+ * <p>
+ * Замеры, выполненные в рамках обработки страницы ({@link #page(File)}), учитываются дополнительно
+ * в метриках этой страницы. Этапы могут быть вложены друг в друга: например, очистка html входит
+ * в конвертацию документа, поэтому суммы этапов не складываются в общее время.
+ */
+public final class Metrics {
+
+    private static final Map<String, Timer> TIMERS = new ConcurrentHashMap<>();
+    private static final Map<String, LongAdder> COUNTERS = new ConcurrentHashMap<>();
+    private static final Map<String, Map<String, Timer>> PAGES = new ConcurrentHashMap<>();
+
+    private static final ThreadLocal<String> CURRENT_PAGE = new ThreadLocal<>();
+
+    private Metrics() {
+    }
+
+
+    /**
+     * Начинает замер этапа. Замер завершается закрытием возвращённого объекта.
+     */
+    public static Sample start(String phase) {
+        return new Sample(phase, CURRENT_PAGE.get(), System.nanoTime());
+    }
+
+    /**
+     * Учитывает уже измеренную длительность этапа, не относящегося ни к одной странице.
+     */
+    public static void record(String phase, long nanos) {
+        timer(TIMERS, phase).record(nanos);
+    }
+
+    public static void count(String counter, long delta) {
+        COUNTERS.computeIfAbsent(counter, name -> new LongAdder()).add(delta);
+    }
+
+    /**
+     * Относит замеры, выполняемые текущим потоком до закрытия возвращённого объекта, к странице
+     * указанного документа.
+     */
+    public static Scope page(File document) {
+
+        String previous = CURRENT_PAGE.get();
+        CURRENT_PAGE.set(document.getPath());
+        return new Scope(previous);
+    }
+
+
+    /**
+     * Сбрасывает все накопленные замеры и счётчики, например чтобы в бенчмарке посчитать метрики
+     * одного прогона.
+     */
+    public static void reset() {
+        TIMERS.clear();
+        COUNTERS.clear();
+        PAGES.clear();
+    }
+
+
+    /**
+     * Таймеры этапов, упорядоченные по имени этапа.
+     */
+    public static Map<String, Timer> getTimers() {
+        return new TreeMap<>(TIMERS);
+    }
+
+    public static Map<String, Long> getCounters() {
+
+        Map<String, Long> counters = new TreeMap<>();
+        COUNTERS.forEach((name, adder) -> counters.put(name, adder.sum()));
+        return counters;
+    }
+
+    /**
+     * Таймеры этапов по страницам: документ страницы → этап → таймер.
+     */
+    public static Map<String, Map<String, Timer>> getPages() {
+
+        Map<String, Map<String, Timer>> pages = new TreeMap<>();
+        PAGES.forEach((page, timers) -> pages.put(page, new TreeMap<>(timers)));
+        return pages;
+    }
+
+
+    private static Timer timer(Map<String, Timer> timers, String phase) {
+        return timers.computeIfAbsent(phase, name -> new Timer());
+    }
+
+
+    public static final class Sample implements AutoCloseable {
+
+        private final String phase;
+        private final String page;
+        private final long start;
+
+        private Sample(String phase, String page, long start) {
+            this.phase = phase;
+            this.page = page;
+            this.start = start;
+        }
+
+        @Override
+        public void close() {
+
+            long nanos = System.nanoTime() - start;
+            timer(TIMERS, phase).record(nanos);
+            if (page != null) {
+                timer(PAGES.computeIfAbsent(page, name -> new ConcurrentHashMap<>()), phase).record(nanos);
+            }
+        }
+    }
+
+    public static final class Scope implements AutoCloseable {
+
+        private final String previous;
+
+        private Scope(String previous) {
+            this.previous = previous;
+        }
+
+        @Override
+        public void close() {
+
+            if (previous != null) {
+                CURRENT_PAGE.set(previous);
+            } else {
+                CURRENT_PAGE.remove();
+            }
+        }
+    }
+
+    /**
+     * Таймер этапа. Количество, сумма и максимум замеров точные, а процентили вычисляются по гистограмме
+     * с логарифмическими корзинами: каждая степень двойки делится на {@value #SUB_BUCKETS} корзин,
+     * поэтому процентиль завышается не более чем на 1/{@value #SUB_BUCKETS} от значения. Память таймера
+     * не зависит от количества замеров, а запись замера обходится без блокировок, так что таймер
+     * одинаково дёшев и при запуске с {@code --jobs}, и в бенчмарках с миллионами вызовов.
+     */
+    public static final class Timer {
+
+        private static final int SUB_BITS = 3;
+        private static final int SUB_BUCKETS = 1 << SUB_BITS;
+
+        /**
+         * Значения меньше {@link #SUB_BUCKETS} занимают по корзине, дальше — по {@link #SUB_BUCKETS}
+         * корзин на каждую степень двойки вплоть до {@link Long#MAX_VALUE}.
+         */
+        private static final int BUCKETS = (Long.SIZE - SUB_BITS) * SUB_BUCKETS;
+
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+        private final LongAdder total = new LongAdder();
+        private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+        private void record(long nanos) {
+
+            nanos = Math.max(nanos, 0);
+            buckets.incrementAndGet(bucket(nanos));
+            total.add(nanos);
+            max.accumulate(nanos);
+        }
+
+        public Statistics getStatistics() {
+
+            long[] counts = new long[BUCKETS];
+            long count = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                counts[i] = buckets.get(i);
+                count += counts[i];
+            }
+
+            long maximum = max.get();
+            return new Statistics((int) count, total.sum(),
+                    percentile(counts, count, 0.5, maximum), percentile(counts, count, 0.95, maximum), maximum);
+        }
+
+        /**
+         * Процентиль методом ближайшего ранга: верхняя граница корзины, в которую попадает замер
+         * с нужным рангом, но не больше максимума.
+         */
+        private static long percentile(long[] counts, long count, double quantile, long max) {
+
+            if (count == 0) {
+                return 0;
+            }
+
+            long rank = (long) Math.ceil(quantile * count);
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    return Math.min(upperBound(i), max);
+                }
+            }
+            return max;
+        }
+
+        static int bucket(long value) {
+
+            if (value < SUB_BUCKETS) {
+                return (int) value;
+            }
+
+            int exponent = 63 - Long.numberOfLeadingZeros(value);
+            int mantissa = (int) (value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+            return ((exponent - SUB_BITS + 1) << SUB_BITS) + mantissa;
+        }
+
+        static long upperBound(int bucket) {
+
+            if (bucket < SUB_BUCKETS) {
+                return bucket;
+            }
+
+            int shift = (bucket >>> SUB_BITS) - 1;
+            long lower = (long) (SUB_BUCKETS + (bucket & (SUB_BUCKETS - 1))) << shift;
+            return lower + ((1L << shift) - 1);
+        }
+    }
+
+    /**
+     * Сводка по замерам этапа. Длительности в наносекундах.
+     */
+    public static final class Statistics {
+
+        public final int count;
+        public final long total;
+        public final long p50;
+        public final long p95;
+        public final long max;
+
+        private Statistics(int count, long total, long p50, long p95, long max) {
+            this.count = count;
+            this.total = total;
+            this.p50 = p50;
+            this.p95 = p95;
+            this.max = max;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d call(s), total %d ms, p50 %d ms, p95 %d ms, max %d ms",
+                    count, millis(total), millis(p50), millis(p95), millis(max));
+        }
+
+        private static long millis(long nanos) {
+            return TimeUnit.NANOSECONDS.toMillis(nanos);
+        }
+    }
+
+}
@@ -0,0 +1,156 @@
+package ru.kbakaras.cop.metrics;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import lombok.extern.slf4j.Slf4j;
+import ru.kbakaras.sugar.lazy.Lazy;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * Вывод метрик запуска ({@link Metrics}): сводка в лог и выгрузка в файл в формате JSON
+ * или в текстовом формате Prometheus для отслеживания динамики в CI.
+ */
+@Slf4j
+public class MetricsReport {
+
+    private static final Lazy<ObjectMapper> JSON_MAPPER = Lazy
+            .of(() -> new ObjectMapper().enable(SerializationFeature.INDENT_OUTPUT));
+
+    private static final String PROMETHEUS_PREFIX = "cop_";
+
+
+    /**
+     * Выводит в лог сводку по этапам, счётчики и время этапов по каждой странице.
+     */
+    public void log() {
+
+        log.info("Metrics:");
+        Metrics.getTimers().forEach((phase, timer) -> log.info("  {}: {}", phase, timer.getStatistics()));
+        Metrics.getCounters().forEach((counter, value) -> log.info("  {}: {}", counter, value));
+
+        Map<String, Map<String, Metrics.Timer>> pages = Metrics.getPages();
+        if (!pages.isEmpty()) {
+            log.info("Metrics by page:");
+            pages.forEach((page, timers) -> log.info("  {}: {}", page, timers.entrySet().stream()
+                    .map(entry -> {
+                        Metrics.Statistics statistics = entry.getValue().getStatistics();
+                        return entry.getKey() + " " + TimeUnit.NANOSECONDS.toMillis(statistics.total) + " ms"
+                                + (statistics.count > 1 ? " (" + statistics.count + ")" : "");
+                    })
+                    .collect(Collectors.joining(", "))));
+        }
+    }
+
+    /**
+     * Записывает метрики в файл. Ошибка записи выводится в лог и не влияет на результат запуска.
+     */
+    public void write(File file, Format format) {
+
+        try (Writer writer = Files.newBufferedWriter(file.toPath(), StandardCharsets.UTF_8)) {
+            if (format == Format.PROMETHEUS) {
+                writePrometheus(writer);
+            } else {
+                JSON_MAPPER.get().writeValue(writer, toJson());
+            }
+            log.info("Metrics are written to '{}'", file);
+
+        } catch (IOException e) {
+            log.error("Unable to write metrics to '" + file + "'", e);
+        }
+    }
+
+
+    private static ObjectNode toJson() {
+
+        ObjectMapper mapper = JSON_MAPPER.get();
+        ObjectNode root = mapper.createObjectNode();
+
+        ObjectNode timers = root.putObject("timers");
+        Metrics.getTimers().forEach((phase, timer) -> timers.set(phase, toJson(mapper, timer.getStatistics())));
+
+        ObjectNode counters = root.putObject("counters");
+        Metrics.getCounters().forEach(counters::put);
+
+        ObjectNode pages = root.putObject("pages");
+        Metrics.getPages().forEach((page, pageTimers) -> {
+            ObjectNode pageNode = pages.putObject(page);
+            pageTimers.forEach((phase, timer) -> pageNode.set(phase, toJson(mapper, timer.getStatistics())));
+        });
+
+        return root;
+    }
+
+    private static ObjectNode toJson(ObjectMapper mapper, Metrics.Statistics statistics) {
+
+        ObjectNode node = mapper.createObjectNode();
+        node.put("count", statistics.count);
+        node.put("totalMs", millis(statistics.total));
+        node.put("p50Ms", millis(statistics.p50));
+        node.put("p95Ms", millis(statistics.p95));
+        node.put("maxMs", millis(statistics.max));
+        return node;
+    }
+
+    private static void writePrometheus(Writer writer) throws IOException {
+
+        String phaseSeconds = PROMETHEUS_PREFIX + "phase_seconds";
+        writer.write("# TYPE " + phaseSeconds + " summary\n");
+        for (Map.Entry<String, Metrics.Timer> entry : Metrics.getTimers().entrySet()) {
+            String phase = "phase=\"" + escapeLabel(entry.getKey()) + "\"";
+            Metrics.Statistics statistics = entry.getValue().getStatistics();
+            writer.write(phaseSeconds + "{" + phase + ",quantile=\"0.5\"} " + seconds(statistics.p50) + "\n");
+            writer.write(phaseSeconds + "{" + phase + ",quantile=\"0.95\"} " + seconds(statistics.p95) + "\n");
+            writer.write(phaseSeconds + "_sum{" + phase + "} " + seconds(statistics.total) + "\n");
+            writer.write(phaseSeconds + "_count{" + phase + "} " + statistics.count + "\n");
+        }
+
+        String phaseMax = PROMETHEUS_PREFIX + "phase_max_seconds";
+        writer.write("# TYPE " + phaseMax + " gauge\n");
+        for (Map.Entry<String, Metrics.Timer> entry : Metrics.getTimers().entrySet()) {
+            writer.write(phaseMax + "{phase=\"" + escapeLabel(entry.getKey()) + "\"} "
+                    + seconds(entry.getValue().getStatistics().max) + "\n");
+        }
+
+        for (Map.Entry<String, Long> entry : Metrics.getCounters().entrySet()) {
+            String counter = PROMETHEUS_PREFIX + entry.getKey().replaceAll("[^a-zA-Z0-9_]", "_") + "_total";
+            writer.write("# TYPE " + counter + " counter\n");
+            writer.write(counter + " " + entry.getValue() + "\n");
+        }
+
+        String pageSeconds = PROMETHEUS_PREFIX + "page_phase_seconds";
+        writer.write("# TYPE " + pageSeconds + " gauge\n");
+        for (Map.Entry<String, Map<String, Metrics.Timer>> page : Metrics.getPages().entrySet()) {
+            for (Map.Entry<String, Metrics.Timer> entry : page.getValue().entrySet()) {
+                writer.write(pageSeconds + "{page=\"" + escapeLabel(page.getKey()) + "\",phase=\""
+                        + escapeLabel(entry.getKey()) + "\"} " + seconds(entry.getValue().getStatistics().total) + "\n");
+            }
+        }
+    }
+
+    private static String escapeLabel(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    private static long millis(long nanos) {
+        return TimeUnit.NANOSECONDS.toMillis(nanos);
+    }
+
+    private static String seconds(long nanos) {
+        return String.valueOf(nanos / 1e9);
+    }
+
+
+    public enum Format {
+        JSON, PROMETHEUS
+    }
+
+}
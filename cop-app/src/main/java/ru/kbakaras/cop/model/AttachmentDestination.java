@@ -2,18 +2,55 @@ package ru.kbakaras.cop.model;
 
 import org.apache.commons.codec.digest.DigestUtils;
 import ru.kbakaras.cop.confluence.dto.Attachment;
+import ru.kbakaras.cop.confluence.dto.Extensions;
+
+import java.util.Optional;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 public class AttachmentDestination {
 
+    private static final Pattern PATTERN_SHA1_COMMENT =
+            Pattern.compile(Pattern.quote(AttachmentSource.SHA1_COMMENT_PREFIX) + "([0-9a-f]{40})");
+
+
     public final String name;
     public final Attachment attachment;
     public final String sha1;
 
 
     public AttachmentDestination(Attachment attachment, byte[] imageData) {
+        this(attachment, DigestUtils.sha1Hex(imageData));
+    }
+
+    private AttachmentDestination(Attachment attachment, String sha1) {
         this.name = attachment.getTitle();
         this.attachment = attachment;
-        this.sha1 = DigestUtils.sha1Hex(imageData);
+        this.sha1 = sha1;
+    }
+
+
+    /**
+     * Создаёт описание вложения по хэшу, сохранённому в комментарии к вложению при его загрузке.
+     * Если комментарий хэша не содержит (вложение загружено более ранней версией публикатора
+     * или изменено вручную), возвращает пустое значение. В этом случае хэш нужно вычислять
+     * по скачанному содержимому вложения.
+     */
+    public static Optional<AttachmentDestination> fromStoredHash(Attachment attachment) {
+
+        return Optional.ofNullable(attachment.getExtensions())
+                .map(Extensions::getComment)
+                .map(PATTERN_SHA1_COMMENT::matcher)
+                .filter(Matcher::find)
+                .map(matcher -> new AttachmentDestination(attachment, matcher.group(1)));
+    }
+
+    /**
+     * Создаёт описание вложения без хэша. Применяется для вложений, содержимое которых
+     * не требуется сравнивать; поле {@link #sha1} у такого описания не заполнено.
+     */
+    public static AttachmentDestination withoutHash(Attachment attachment) {
+        return new AttachmentDestination(attachment, (String) null);
     }
 
 }
@@ -2,31 +2,51 @@ package ru.kbakaras.cop.model;
 
 import lombok.SneakyThrows;
 import org.apache.commons.codec.digest.DigestUtils;
-import org.apache.commons.io.FileUtils;
 import org.apache.tika.Tika;
 import org.htmlcleaner.TagNode;
+import ru.kbakaras.cop.metrics.Metrics;
 
 import java.io.File;
+import java.io.InputStream;
+import java.nio.file.Files;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 public class AttachmentSource {
 
+    /**
+     * Префикс, с которым хэш содержимого записывается в комментарий к вложению в Confluence.
+     */
+    public static final String SHA1_COMMENT_PREFIX = "sha1:";
+
+    private static final String VERSION_AT_SAVE = "ri:version-at-save";
+
+    public final File file;
     public final String name;
     public final String mime;
-    public final byte[] data;
     public final String sha1;
 
     private final Set<TagNode> nodes = new HashSet<>();
+    private final List<Runnable> changeListeners = new CopyOnWriteArrayList<>();
 
 
     @SneakyThrows
     public AttachmentSource(File imageFile) {
 
+        file = imageFile;
         name = imageFile.getName();
-        mime = new Tika().detect(imageFile);
-        data = FileUtils.readFileToByteArray(imageFile);
-        sha1 = DigestUtils.sha1Hex(data);
+
+        try (Metrics.Sample ignored = Metrics.start("attachment.hash")) {
+            mime = new Tika().detect(imageFile);
+
+            // Содержимое файла в памяти не удерживается: хэш вычисляется потоково,
+            // а при загрузке в Confluence файл также передаётся потоком.
+            try (InputStream is = Files.newInputStream(imageFile.toPath())) {
+                sha1 = DigestUtils.sha1Hex(is);
+            }
+        }
     }
 
     public AttachmentSource addNode(TagNode node) {
@@ -35,10 +55,41 @@ public class AttachmentSource {
         return this;
     }
 
+    /**
+     * Комментарий к вложению, содержащий хэш его содержимого. По этому хэшу при последующих
+     * обновлениях определяется, изменилось ли вложение, без скачивания его из Confluence.
+     */
+    public String getHashComment() {
+        return SHA1_COMMENT_PREFIX + sha1;
+    }
+
+    /**
+     * Регистрирует обработчик, который вызывается при изменении узлов содержимого страницы,
+     * ссылающихся на вложение.
+     */
+    public void addChangeListener(Runnable listener) {
+        changeListeners.add(listener);
+    }
+
+    /**
+     * Записывает номер версии вложения в ссылающиеся на него узлы. Если номер не изменился,
+     * узлы не изменяются и обработчики изменений не вызываются.
+     */
     public void setVersionAtSave(int number) {
 
         String versionAtSave = String.format("%d", number);
-        nodes.forEach(node -> node.addAttribute("ri:version-at-save", versionAtSave));
+
+        boolean changed = false;
+        for (TagNode node : nodes) {
+            if (!versionAtSave.equals(node.getAttributeByName(VERSION_AT_SAVE))) {
+                node.addAttribute(VERSION_AT_SAVE, versionAtSave);
+                changed = true;
+            }
+        }
+
+        if (changed) {
+            changeListeners.forEach(Runnable::run);
+        }
     }
 
 }
@@ -6,11 +6,26 @@ import org.htmlcleaner.CleanerProperties;
 import org.htmlcleaner.HtmlCleaner;
 import org.htmlcleaner.SimpleXmlSerializer;
 import org.htmlcleaner.TagNode;
+import ru.kbakaras.cop.metrics.Metrics;
 
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
-
+import java.util.Optional;
+
+/**
+ * Содержимое страницы, подготовленное к публикации.
+ * <p>
+ * Сериализованное содержимое, его хэш и канонизированное дерево для сравнения вычисляются по запросу
+ * и запоминаются. Запомненные значения сбрасываются методом {@link #invalidate()}, который нужно
+ * вызывать после каждого изменения дерева содержимого. При записи номеров версий вложений (см.
+ * {@link AttachmentSource#setVersionAtSave(int)}) он вызывается автоматически.
+ */
 public class PageSource {
 
     public final String title;
@@ -19,41 +34,141 @@ public class PageSource {
 
     public final List<AttachmentSource> attachmentSourceList;
 
+    private String serializedContent;
+    private String contentDigest;
+    private TagNode canonicalContent;
+
 
     public PageSource(String title, TagNode content, Collection<AttachmentSource> attachmentSourceList) {
         this.title = title;
         this.content = content;
         this.attachmentSourceList = new ArrayList<>(attachmentSourceList);
+
+        this.attachmentSourceList.forEach(attachmentSource -> attachmentSource.addChangeListener(this::invalidate));
     }
 
-    public String getContent() {
-        return serializeContent(content);
+    public synchronized String getContent() {
+
+        if (serializedContent == null) {
+            serializedContent = serializeContent(content);
+        }
+        return serializedContent;
+    }
+
+    /**
+     * Записывает сериализованное содержимое страницы в поток в кодировке UTF-8, байт в байт
+     * совпадающее с {@link #getContent()}. Если содержимое ещё не сериализовалось, оно сериализуется
+     * прямо в поток, без промежуточной строки, и не запоминается. Поток не закрывается.
+     */
+    public void writeTo(OutputStream out) throws IOException {
+
+        Writer writer = new OutputStreamWriter(out, StandardCharsets.UTF_8);
+        writeTo(writer);
+        writer.flush();
+    }
+
+    /**
+     * То же, что {@link #writeTo(OutputStream)}, но в символьный поток. Поток не закрывается.
+     */
+    public void writeTo(Writer writer) throws IOException {
+
+        String serialized;
+        synchronized (this) {
+            serialized = serializedContent;
+            if (serialized == null) {
+                // Сериализатор закрывает переданный ему поток, а ChompWriter при этом свой поток не закрывает.
+                try (Metrics.Sample ignored = Metrics.start("html.serialize")) {
+                    createSerializer().write(content, new ChompWriter(writer), null);
+                }
+            }
+        }
+
+        if (serialized != null) {
+            writer.write(serialized);
+        }
+    }
+
+    /**
+     * SHA1 сериализованного содержимого страницы.
+     */
+    public synchronized String getContentDigest() {
+
+        if (contentDigest == null) {
+            contentDigest = DigestUtils.sha1Hex(getContent());
+        }
+        return contentDigest;
     }
 
     public boolean differentContent(String htmlContent) {
-        return !DigestUtils.sha1Hex(getContent())
-                .equals(DigestUtils.sha1Hex(serializeContent(cleanContent(htmlContent))));
+        return findDifference(htmlContent).isPresent();
+    }
+
+    /**
+     * Сравнивает содержимое страницы с содержимым в формате хранения Confluence.
+     *
+     * @return описание первого различия (см. {@link TagNodeComparer}) или пустое значение,
+     * если содержимое совпадает
+     */
+    public Optional<String> findDifference(String htmlContent) {
+
+        if (htmlContent.equals(getContent())) {
+            return Optional.empty();
+        }
+
+        TagNode actual = cleanContent(htmlContent);
+        try (Metrics.Sample ignored = Metrics.start("content.compare")) {
+            return TagNodeComparer.findDifference(getCanonicalContent(), actual);
+        }
+    }
+
+    /**
+     * Дерево содержимого в том виде, в каком его получит сравнение после отправки в Confluence:
+     * результат повторной очистки сериализованного содержимого. С ним сравнивается очищенное
+     * так же содержимое, полученное из Confluence.
+     */
+    private synchronized TagNode getCanonicalContent() {
+
+        if (canonicalContent == null) {
+            canonicalContent = cleanContent(getContent());
+        }
+        return canonicalContent;
+    }
+
+    /**
+     * Сбрасывает запомненные сериализованное содержимое, его хэш и канонизированное дерево.
+     * Вызывается после изменения дерева содержимого страницы.
+     */
+    public synchronized void invalidate() {
+        serializedContent = null;
+        contentDigest = null;
+        canonicalContent = null;
     }
 
 
     public static TagNode cleanContent(String htmlContent) {
 
-        HtmlCleaner cleaner = new HtmlCleaner();
-        setProperties(cleaner)
-                .setDeserializeEntities(true);
+        try (Metrics.Sample ignored = Metrics.start("html.clean")) {
+            HtmlCleaner cleaner = new HtmlCleaner();
+            setProperties(cleaner)
+                    .setDeserializeEntities(true);
 
-        return cleaner.clean(htmlContent);
+            return cleaner.clean(htmlContent);
+        }
     }
 
     public static String serializeContent(TagNode node) {
 
+        try (Metrics.Sample ignored = Metrics.start("html.serialize")) {
+            return StringUtils.chomp(createSerializer().getAsString(node));
+        }
+    }
+
+    private static SimpleXmlSerializer createSerializer() {
+
         HtmlCleaner cleaner = new HtmlCleaner();
         setProperties(cleaner);
 
-
-        return StringUtils.chomp(
-                new SimpleXmlSerializer(cleaner.getProperties()).getAsString(node)
-        );
+        return new SimpleXmlSerializer(cleaner.getProperties());
     }
 
     public static CleanerProperties setProperties(HtmlCleaner cleaner) {
@@ -65,4 +180,60 @@ public class PageSource {
         return props;
     }
 
+
+    /**
+     * Поток, отбрасывающий при закрытии один завершающий перевод строки, как {@link StringUtils#chomp(String)}.
+     * Переводы строк в конце записанного придерживаются, пока не станет ясно, завершают ли они текст.
+     * Закрытие не закрывает нижележащий поток, а только сбрасывает его буфер.
+     */
+    private static final class ChompWriter extends Writer {
+
+        private final Writer out;
+        private final StringBuilder pending = new StringBuilder();
+
+        ChompWriter(Writer out) {
+            this.out = out;
+        }
+
+        @Override
+        public void write(char[] buffer, int offset, int length) throws IOException {
+
+            int end = offset + length;
+            int lastText = end - 1;
+            while (lastText >= offset && isLineBreak(buffer[lastText])) {
+                lastText--;
+            }
+
+            if (lastText >= offset) {
+                if (pending.length() > 0) {
+                    out.append(pending);
+                    pending.setLength(0);
+                }
+                out.write(buffer, offset, lastText + 1 - offset);
+            }
+            pending.append(buffer, lastText + 1, end - lastText - 1);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+
+            int length = pending.length();
+            if (length > 0) {
+                boolean crlf = length > 1 && pending.charAt(length - 2) == '\r' && pending.charAt(length - 1) == '\n';
+                out.append(pending, 0, length - (crlf ? 2 : 1));
+                pending.setLength(0);
+            }
+            out.flush();
+        }
+
+        private static boolean isLineBreak(char c) {
+            return c == '\n' || c == '\r';
+        }
+    }
+
 }
@@ -0,0 +1,136 @@
+package ru.kbakaras.cop.model;
+
+import org.htmlcleaner.BaseToken;
+import org.htmlcleaner.CommentNode;
+import org.htmlcleaner.ContentNode;
+import org.htmlcleaner.TagNode;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+
+/**
+ * Структурное сравнение деревьев html. Деревья обходятся одновременно, и сравнение прекращается
+ * на первом же различии, поэтому для различающихся страниц обходится обычно лишь небольшая часть
+ * дерева, а для совпадающих не требуется их сериализация.
+ * <p>
+ * Элементы сравниваются по имени, набору атрибутов (без учёта порядка) и дочерним узлам, текстовые
+ * узлы и комментарии — по содержимому. Найденное различие описывается путём к нему в стиле XPath,
+ * например {@code /ac:structured-macro[2]/ac:parameter[1]: attribute 'ac:name'}.
+ */
+public final class TagNodeComparer {
+
+    private TagNodeComparer() {
+    }
+
+
+    /**
+     * Ищет первое различие деревьев.
+     *
+     * @return описание первого различия или пустое значение, если деревья совпадают
+     */
+    public static Optional<String> findDifference(TagNode expected, TagNode actual) {
+        return Optional.ofNullable(compareTags(expected, actual, ""));
+    }
+
+
+    private static String compareTags(TagNode expected, TagNode actual, String path) {
+
+        if (!Objects.equals(expected.getName(), actual.getName())) {
+            return path + ": element <" + expected.getName() + "> instead of <" + actual.getName() + ">";
+        }
+
+        Map<String, String> expectedAttributes = expected.getAttributes();
+        Map<String, String> actualAttributes = actual.getAttributes();
+        if (!expectedAttributes.equals(actualAttributes)) {
+            return path + ": " + attributeDifference(expectedAttributes, actualAttributes);
+        }
+
+        List<? extends BaseToken> expectedChildren = expected.getAllChildren();
+        List<? extends BaseToken> actualChildren = actual.getAllChildren();
+
+        // Номера элементов среди одноимённых соседей, как в XPath.
+        Map<String, Integer> positions = new HashMap<>();
+
+        int count = Math.min(expectedChildren.size(), actualChildren.size());
+        for (int i = 0; i < count; i++) {
+
+            BaseToken expectedChild = expectedChildren.get(i);
+            BaseToken actualChild = actualChildren.get(i);
+
+            String childPath = path + "/" + step(expectedChild, positions);
+            String difference = expectedChild instanceof TagNode && actualChild instanceof TagNode
+                    ? compareTags((TagNode) expectedChild, (TagNode) actualChild, childPath)
+                    : compareTokens(expectedChild, actualChild, childPath);
+
+            if (difference != null) {
+                return difference;
+            }
+        }
+
+        if (expectedChildren.size() != actualChildren.size()) {
+            return (path.isEmpty() ? "/" : path) + ": " + expectedChildren.size()
+                    + " child node(s) instead of " + actualChildren.size();
+        }
+
+        return null;
+    }
+
+    private static String compareTokens(BaseToken expected, BaseToken actual, String path) {
+
+        if (expected.getClass() != actual.getClass()) {
+            return path + ": " + kind(expected) + " instead of " + kind(actual);
+        }
+
+        return Objects.equals(content(expected), content(actual)) ? null : path + ": different " + kind(expected);
+    }
+
+    private static String attributeDifference(Map<String, String> expected, Map<String, String> actual) {
+
+        for (Map.Entry<String, String> entry : expected.entrySet()) {
+            if (!Objects.equals(entry.getValue(), actual.get(entry.getKey()))) {
+                return "attribute '" + entry.getKey() + "'";
+            }
+        }
+
+        return actual.keySet().stream()
+                .filter(name -> !expected.containsKey(name))
+                .findFirst()
+                .map(name -> "unexpected attribute '" + name + "'")
+                .orElse("attributes");
+    }
+
+
+    private static String step(BaseToken token, Map<String, Integer> positions) {
+
+        String name = token instanceof TagNode ? ((TagNode) token).getName() : kind(token) + "()";
+        return name + "[" + positions.merge(name, 1, Integer::sum) + "]";
+    }
+
+    private static String kind(BaseToken token) {
+
+        if (token instanceof TagNode) {
+            return "element";
+        } else if (token instanceof CommentNode) {
+            return "comment";
+        } else if (token instanceof ContentNode) {
+            return "text";
+        } else {
+            return token.getClass().getSimpleName();
+        }
+    }
+
+    private static String content(BaseToken token) {
+
+        if (token instanceof CommentNode) {
+            return ((CommentNode) token).getContent();
+        } else if (token instanceof ContentNode) {
+            return ((ContentNode) token).getContent();
+        } else {
+            return token.toString();
+        }
+    }
+
+}
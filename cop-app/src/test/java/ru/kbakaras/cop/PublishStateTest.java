@@ -0,0 +1,99 @@
+package ru.kbakaras.cop;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.kbakaras.cop.model.PageSource;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Optional;
+
+class PublishStateTest {
+
+    @TempDir
+    Path root;
+
+    private File listFile;
+    private UpdateTarget target;
+
+
+    @BeforeEach
+    void createTree() throws IOException {
+
+        write("doc.adoc", "= Title\n\ninclude::parts/part.adoc[]\n");
+        write("parts/part.adoc", "Part\n\ninclude::nested.adoc[]\n");
+        write("parts/nested.adoc", "Nested\n");
+        write("list.yaml", "- file: doc.adoc\n  pageId: '1'\n");
+
+        listFile = root.resolve("list.yaml").toFile();
+        target = UpdateTarget.readTargets(listFile)[0];
+    }
+
+
+    @Test
+    void unchangedVersion_NothingChanged_RecordedVersion() throws IOException {
+
+        publish(Collections.emptyMap(), 5);
+
+        Assertions.assertEquals(Optional.of(5), PublishState.load(listFile, Collections.emptyMap()).unchangedVersion(target));
+    }
+
+    @Test
+    void unchangedVersion_NestedIncludeChanged_Empty() throws IOException {
+
+        publish(Collections.emptyMap(), 5);
+        write("parts/nested.adoc", "Nested, changed\n");
+
+        Assertions.assertEquals(Optional.empty(), PublishState.load(listFile, Collections.emptyMap()).unchangedVersion(target));
+    }
+
+    @Test
+    void unchangedVersion_AttributeOverrideChanged_Empty() throws IOException {
+
+        publish(Map.of("product", "first"), 5);
+
+        Assertions.assertEquals(Optional.of(5), PublishState.load(listFile, Map.of("product", "first")).unchangedVersion(target));
+        Assertions.assertEquals(Optional.empty(), PublishState.load(listFile, Map.of("product", "second")).unchangedVersion(target));
+    }
+
+    @Test
+    void record_IncludeTargetFromAttribute_NotRecorded() throws IOException {
+
+        write("doc.adoc", "= Title\n\ninclude::{partsdir}/part.adoc[]\n");
+        publish(Collections.emptyMap(), 5);
+
+        // Какой файл включается, зависит от атрибута, поэтому изменения страницы не отследить.
+        Assertions.assertEquals(Optional.empty(), PublishState.load(listFile, Collections.emptyMap()).unchangedVersion(target));
+        Assertions.assertFalse(Files.readString(root.resolve("list.yaml.state")).contains("doc.adoc"));
+    }
+
+    @Test
+    void load_CorruptedState_Empty() throws IOException {
+
+        write("list.yaml.state", "pages: [");
+
+        Assertions.assertEquals(Optional.empty(), PublishState.load(listFile, Collections.emptyMap()).unchangedVersion(target));
+    }
+
+
+    private void publish(Map<String, Object> attributes, int confluenceVersion) throws IOException {
+
+        PublishState state = PublishState.load(listFile, attributes);
+        state.record(target, new PageSource("Title", PageSource.cleanContent("<p>Text</p>"), Collections.emptyList()),
+                confluenceVersion);
+        state.save();
+    }
+
+    private void write(String path, String content) throws IOException {
+        Path file = root.resolve(path);
+        Files.createDirectories(file.getParent());
+        Files.writeString(file, content);
+    }
+
+}
@@ -0,0 +1,178 @@
+package ru.kbakaras.cop;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.kbakaras.cop.confluence.dto.Ancestor;
+import ru.kbakaras.cop.confluence.dto.Content;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.stream.Collectors;
+
+class SyncCommandTest {
+
+    @TempDir
+    Path root;
+
+
+    @BeforeEach
+    void createTree() throws IOException {
+
+        write("index.adoc");
+        write("a.adoc");
+        write("_include.adoc");
+        write(".hidden/x.adoc");
+        write("notes.txt");
+        write("guide/index.adoc");
+        write("guide/b.adoc");
+        write("plain/c.adoc");
+        Files.createDirectories(root.resolve("empty"));
+    }
+
+
+    @Test
+    void scan_DirectoryTree_IndexIsDirectoryPage() {
+
+        SyncCommand.SyncNode tree = SyncCommand.scan(root.toFile());
+
+        Assertions.assertEquals("index.adoc", path(tree));
+        Assertions.assertEquals(List.of("a.adoc", "guide/index.adoc", "plain"), paths(tree.children));
+
+        SyncCommand.SyncNode plain = tree.children.get(2);
+        Assertions.assertNull(plain.target);
+        Assertions.assertEquals(List.of("plain/c.adoc"), paths(plain.children));
+
+        Assertions.assertEquals(
+                List.of("index.adoc", "a.adoc", "guide/index.adoc", "guide/b.adoc", "plain/c.adoc"),
+                paths(tree.documents(new ArrayList<>())));
+    }
+
+    @Test
+    void groupByTitle_SameTitleIgnoringCase_Rejected() {
+
+        List<SyncCommand.SyncNode> documents = SyncCommand.scan(root.toFile()).documents(new ArrayList<>());
+
+        Assertions.assertThrows(IllegalArgumentException.class, () -> SyncCommand.groupByTitle(documents,
+                node -> path(node).equals("guide/b.adoc") ? "A.ADOC" : path(node)));
+    }
+
+    @Test
+    void groupByTitle_UniqueTitles_AllGrouped() {
+
+        List<SyncCommand.SyncNode> documents = SyncCommand.scan(root.toFile()).documents(new ArrayList<>());
+
+        Map<String, List<SyncCommand.SyncNode>> byTitle = SyncCommand.groupByTitle(documents, this::path);
+
+        Assertions.assertEquals(documents.size(), byTitle.size());
+        Assertions.assertTrue(byTitle.containsKey("GUIDE/B.ADOC"));
+    }
+
+    @Test
+    void syncSubtree_Tree_ParentBeforeChildren() {
+
+        SyncCommand.SyncNode tree = SyncCommand.scan(root.toFile());
+        List<String> synced = Collections.synchronizedList(new ArrayList<>());
+        Map<String, String> parents = new ConcurrentHashMap<>();
+
+        sync(tree, (node, parentPageId) -> {
+            synced.add(path(node));
+            parents.put(path(node), parentPageId);
+            return "id:" + path(node);
+        }, (descendant, node) -> Assertions.fail());
+
+        Assertions.assertEquals(5, synced.size());
+        Assertions.assertEquals("index.adoc", synced.get(0));
+        Assertions.assertTrue(synced.indexOf("guide/index.adoc") < synced.indexOf("guide/b.adoc"));
+
+        Assertions.assertEquals("root", parents.get("index.adoc"));
+        Assertions.assertEquals("id:index.adoc", parents.get("a.adoc"));
+        Assertions.assertEquals("id:index.adoc", parents.get("guide/index.adoc"));
+        Assertions.assertEquals("id:guide/index.adoc", parents.get("guide/b.adoc"));
+        // У каталога без index.adoc нет своей страницы, его документы размещаются выше.
+        Assertions.assertEquals("id:index.adoc", parents.get("plain/c.adoc"));
+    }
+
+    @Test
+    void syncSubtree_ParentFailed_DescendantsFailed() {
+
+        SyncCommand.SyncNode tree = SyncCommand.scan(root.toFile());
+        List<String> synced = Collections.synchronizedList(new ArrayList<>());
+        Map<String, String> failed = new ConcurrentHashMap<>();
+
+        sync(tree, (node, parentPageId) -> {
+            synced.add(path(node));
+            return path(node).equals("guide/index.adoc") ? null : "id:" + path(node);
+        }, (descendant, node) -> failed.put(path(descendant), path(node)));
+
+        Assertions.assertFalse(synced.contains("guide/b.adoc"));
+        Assertions.assertEquals(4, synced.size());
+        Assertions.assertEquals(Map.of("guide/b.adoc", "guide/index.adoc"), failed);
+    }
+
+    @Test
+    void moveTo_SameParent_Null() {
+        Assertions.assertNull(SyncCommand.moveTo(content("1", "2"), "2"));
+    }
+
+    @Test
+    void moveTo_OtherParent_NewParent() {
+        Assertions.assertEquals("3", SyncCommand.moveTo(content("1", "2"), "3"));
+    }
+
+    @Test
+    void moveTo_NoAncestors_NewParent() {
+        Assertions.assertEquals("3", SyncCommand.moveTo(content(), "3"));
+    }
+
+
+    private void sync(SyncCommand.SyncNode tree, BiFunction<SyncCommand.SyncNode, String, String> syncPage,
+                      BiConsumer<SyncCommand.SyncNode, SyncCommand.SyncNode> parentFailed) {
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            SyncCommand.syncSubtree(tree, "root", executor, syncPage, parentFailed).join();
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private void write(String path) throws IOException {
+        Path file = root.resolve(path);
+        Files.createDirectories(file.getParent());
+        Files.writeString(file, "= " + path + "\n");
+    }
+
+    /**
+     * Путь документа узла относительно корня; у узла каталога без index.adoc в дереве только {@code plain}.
+     */
+    private String path(SyncCommand.SyncNode node) {
+        return node.target == null
+                ? "plain"
+                : root.relativize(node.target.file.toPath()).toString().replace('\\', '/');
+    }
+
+    private List<String> paths(List<SyncCommand.SyncNode> nodes) {
+        return nodes.stream().map(this::path).collect(Collectors.toList());
+    }
+
+    private static Content content(String... ancestors) {
+
+        Content content = new Content();
+        content.setAncestors(Arrays.stream(ancestors).map(Ancestor::new).toArray(Ancestor[]::new));
+        return content;
+    }
+
+}
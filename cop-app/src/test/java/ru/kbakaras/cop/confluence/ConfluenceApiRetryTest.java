@@ -0,0 +1,133 @@
+package ru.kbakaras.cop.confluence;
+
+import com.sun.net.httpserver.HttpServer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import ru.kbakaras.cop.confluence.dto.Content;
+import ru.kbakaras.cop.confluence.dto.ContentVersion;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Повторы запросов, завершившихся неоднозначной ошибкой (504 от прокси): Confluence мог успеть
+ * выполнить запрос, поэтому обновление и удаление страниц не повторяются, а чтение повторяется.
+ */
+class ConfluenceApiRetryTest {
+
+    private HttpServer server;
+    private ConfluenceApi api;
+
+    private final List<String> requests = new ArrayList<>();
+    private final AtomicInteger attempts = new AtomicInteger();
+
+    /**
+     * Статус ответа на первую попытку и на повторные попытки запросов, изменяющих страницу.
+     */
+    private volatile int firstStatus = 504;
+    private volatile int retryStatus = 409;
+
+
+    @BeforeEach
+    void start() throws IOException {
+
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", exchange -> {
+            requests.add(exchange.getRequestMethod());
+
+            // По умолчанию первая попытка выполнена сервером, но ответ потерян; повтор видит уже
+            // обновлённую страницу.
+            int status;
+            byte[] body;
+            if (attempts.getAndIncrement() == 0) {
+                status = firstStatus;
+                body = new byte[0];
+            } else if (exchange.getRequestMethod().equals("GET")) {
+                status = 200;
+                body = "{\"id\":\"1\",\"version\":{\"number\":2}}".getBytes(StandardCharsets.UTF_8);
+            } else {
+                status = retryStatus;
+                body = status == 409
+                        ? "Version must be incremented on update".getBytes(StandardCharsets.UTF_8)
+                        : new byte[0];
+            }
+
+            exchange.sendResponseHeaders(status, body.length > 0 ? body.length : -1);
+            exchange.getResponseBody().write(body);
+            exchange.close();
+        });
+        server.start();
+
+        api = new ConfluenceApi("http://127.0.0.1:" + server.getAddress().getPort(),
+                new ConfluenceTransport("user", "password", 1, 5, 5, 5),
+                1, new RetryPolicy(3, 0, 0), new RateLimiter(0), ConfluenceApi.DEFAULT_PAGE_SIZE);
+    }
+
+    @AfterEach
+    void stop() throws IOException {
+        api.close();
+        server.stop(0);
+    }
+
+
+    @Test
+    void updateContent_AmbiguousFailure_NotRetried() {
+
+        Content content = new Content();
+        content.setId("1");
+        content.setVersion(new ContentVersion());
+
+        ConfluenceStatusException exception = Assertions.assertThrows(ConfluenceStatusException.class,
+                () -> api.updateContent("1", content));
+
+        // Без повтора ошибка остаётся исходной (504), а не 409 от повторной попытки.
+        Assertions.assertEquals(504, exception.getStatusCode());
+        Assertions.assertEquals(List.of("PUT"), requests);
+    }
+
+    @Test
+    void trashContentById_AmbiguousFailure_NotRetried() {
+
+        ConfluenceStatusException exception = Assertions.assertThrows(ConfluenceStatusException.class,
+                () -> api.trashContentById("1"));
+
+        Assertions.assertEquals(504, exception.getStatusCode());
+        Assertions.assertEquals(List.of("DELETE"), requests);
+    }
+
+    @Test
+    void purgeContentById_ServerError_Retried() throws Exception {
+
+        firstStatus = 500;
+        retryStatus = 204;
+
+        api.purgeContentById("1");
+
+        Assertions.assertEquals(List.of("DELETE", "DELETE"), requests);
+    }
+
+    @Test
+    void purgeContentById_AmbiguousFailure_AlreadyPurged() throws Exception {
+
+        // Первая попытка удалила страницу из корзины, поэтому повтор получает 404.
+        retryStatus = 404;
+
+        api.purgeContentById("1");
+
+        Assertions.assertEquals(List.of("DELETE", "DELETE"), requests);
+    }
+
+    @Test
+    void getContentVersion_AmbiguousFailure_Retried() throws Exception {
+
+        Assertions.assertEquals(2, api.getContentVersion("1").getNumber());
+        Assertions.assertEquals(List.of("GET", "GET"), requests);
+    }
+
+}
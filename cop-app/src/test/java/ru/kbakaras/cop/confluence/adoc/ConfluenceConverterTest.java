@@ -2,6 +2,7 @@ package ru.kbakaras.cop.confluence.adoc;
 
 import org.apache.commons.io.IOUtils;
 import org.asciidoctor.Asciidoctor;
+import org.asciidoctor.Attributes;
 import org.asciidoctor.Options;
 import org.asciidoctor.SafeMode;
 import org.junit.jupiter.api.AfterAll;
@@ -87,6 +88,36 @@ class ConfluenceConverterTest {
         read("Jira");
     }
 
+    @Test
+    void jiraUrlWithRegexCharacters() throws IOException {
+        read("Jira (адрес со спецсимволами)");
+    }
+
+    @Test
+    void jiraAttributesInBody() throws IOException {
+        read("Jira (атрибуты в теле документа)");
+    }
+
+    @Test
+    void jiraAttributesInBodyRubyMode() throws IOException {
+        read("Jira (атрибуты в теле документа)", Attributes.builder().attribute("cop-convert-mode", "ruby").build());
+    }
+
+    @Test
+    void repeatedMacros() throws IOException {
+        read("Повторяющиеся макросы");
+    }
+
+    @Test
+    void attributesBetweenBlocks() throws IOException {
+        read("Атрибуты между блоками");
+    }
+
+    @Test
+    void attributesBetweenBlocksRubyMode() throws IOException {
+        read("Атрибуты между блоками", Attributes.builder().attribute("cop-convert-mode", "ruby").build());
+    }
+
     @Test
     void exampleExpandable() throws IOException {
         read("Example to expandable");
@@ -99,6 +130,10 @@ class ConfluenceConverterTest {
 
 
     private void read(String sourceFileName) throws IOException {
+        read(sourceFileName, Attributes.builder().build());
+    }
+
+    private void read(String sourceFileName, Attributes attributes) throws IOException {
 
         try (InputStream isSource = this.getClass().getResourceAsStream("/source/" + sourceFileName + ".adoc");
              InputStream isDest = this.getClass().getResourceAsStream("/dest/" + sourceFileName + ".xhtml")) {
@@ -114,6 +149,7 @@ class ConfluenceConverterTest {
                     .backend("confluence")
                     .toFile(false)
                     .safe(SafeMode.UNSAFE)
+                    .attributes(attributes)
                     .build());
 
             if (!destination.endsWith("\n")) {
@@ -0,0 +1,49 @@
+package ru.kbakaras.cop.confluence.dto;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.apache.commons.lang3.StringUtils;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+
+class ContentBodyValueTest {
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    @Test
+    void serialize_Streamed_SameAsString() throws IOException {
+
+        String value = "<p class=\"x\">a\\b\t\u0001 текст</p>\n<![CDATA[ 😀 ]]>";
+
+        Assertions.assertEquals(
+                MAPPER.writeValueAsString(new ContentBody(new ContentBodyValue(value, ContentBodyValue.REPRESENTATION_Storage))),
+                MAPPER.writeValueAsString(new ContentBody(ContentBodyValue.streamed(
+                        writer -> writer.write(value), ContentBodyValue.REPRESENTATION_Storage))));
+    }
+
+    @Test
+    void serialize_SurrogatePairSplitBetweenWrites_SameAsString() throws IOException {
+
+        // Пара оказывается на границе частей, на которые делится длинная строка, и между вызовами записи.
+        String head = StringUtils.repeat('x', 8191);
+        String value = head + "😀" + "😁";
+
+        Assertions.assertEquals(
+                MAPPER.writeValueAsString(new ContentBodyValue(value, null)),
+                MAPPER.writeValueAsString(ContentBodyValue.streamed(writer -> {
+                    writer.write(head + "😀\uD83D");
+                    writer.write("\uDE01");
+                }, null)));
+    }
+
+    @Test
+    void deserialize_Value_ReadAsString() throws IOException {
+
+        ContentBodyValue value = MAPPER.readValue("{\"value\":\"<p/>\",\"representation\":\"storage\"}", ContentBodyValue.class);
+
+        Assertions.assertEquals("<p/>", value.getValue());
+        Assertions.assertNull(value.getValueWriter());
+    }
+
+}
@@ -0,0 +1,41 @@
+package ru.kbakaras.cop.metrics;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+
+class MetricsTest {
+
+    @Test
+    void bucket_AnyValue_WithinUpperBound() {
+
+        Random random = new Random(1);
+        for (int i = 0; i < 100_000; i++) {
+            long value = random.nextLong() >>> (1 + random.nextInt(63));
+            long upperBound = Metrics.Timer.upperBound(Metrics.Timer.bucket(value));
+
+            Assertions.assertTrue(value <= upperBound, () -> value + " > " + upperBound);
+            Assertions.assertTrue(upperBound - value <= value / 8, () -> value + " rounded up to " + upperBound);
+        }
+
+        Assertions.assertEquals(Long.MAX_VALUE, Metrics.Timer.upperBound(Metrics.Timer.bucket(Long.MAX_VALUE)));
+    }
+
+    @Test
+    void getStatistics_Samples_ExactTotalsApproximatePercentiles() {
+
+        for (long nanos = 1; nanos <= 1000; nanos++) {
+            Metrics.record("test.statistics", nanos * 1000);
+        }
+
+        Metrics.Statistics statistics = Metrics.getTimers().get("test.statistics").getStatistics();
+
+        Assertions.assertEquals(1000, statistics.count);
+        Assertions.assertEquals(500_500_000, statistics.total);
+        Assertions.assertEquals(1_000_000, statistics.max);
+        Assertions.assertTrue(statistics.p50 >= 500_000 && statistics.p50 <= 500_000 * 9 / 8, () -> "p50 " + statistics.p50);
+        Assertions.assertTrue(statistics.p95 >= 950_000 && statistics.p95 <= 1_000_000, () -> "p95 " + statistics.p95);
+    }
+
+}
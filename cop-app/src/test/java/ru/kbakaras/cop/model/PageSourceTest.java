@@ -0,0 +1,59 @@
+package ru.kbakaras.cop.model;
+
+import org.htmlcleaner.TagNode;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+
+class PageSourceTest {
+
+    private static final String CONTENT = "<h1>Title</h1>\n<p>First &amp; second</p>\n"
+            + "<ac:structured-macro ac:name=\"code\"><ac:plain-text-body><![CDATA[line 1\nline 2\n]]></ac:plain-text-body></ac:structured-macro>\n";
+
+    @Test
+    void writeTo_NotSerializedYet_SameAsGetContent() throws IOException {
+
+        PageSource streamed = new PageSource("Title", PageSource.cleanContent(CONTENT), Collections.emptyList());
+        PageSource serialized = new PageSource("Title", PageSource.cleanContent(CONTENT), Collections.emptyList());
+
+        Assertions.assertEquals(serialized.getContent(), write(streamed));
+        Assertions.assertEquals(serialized.getContent(), write(serialized));
+    }
+
+    @Test
+    void setVersionAtSave_ChangedVersion_ContentInvalidated(@TempDir Path dir) throws IOException {
+
+        Path image = Files.write(dir.resolve("image.png"), new byte[]{1, 2, 3});
+        TagNode content = PageSource.cleanContent("<ac:image><ri:attachment ri:filename=\"image.png\" /></ac:image>");
+        AttachmentSource attachment = new AttachmentSource(image.toFile())
+                .addNode(content.findElementByName("ri:attachment", true));
+
+        PageSource pageSource = new PageSource("Title", content, Collections.singletonList(attachment));
+        String before = pageSource.getContent();
+        String digest = pageSource.getContentDigest();
+
+        attachment.setVersionAtSave(1);
+        String after = pageSource.getContent();
+
+        Assertions.assertNotEquals(before, after);
+        Assertions.assertTrue(after.contains("ri:version-at-save=\"1\""));
+        Assertions.assertNotEquals(digest, pageSource.getContentDigest());
+        Assertions.assertEquals(after, write(pageSource));
+    }
+
+
+    private static String write(PageSource pageSource) throws IOException {
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        pageSource.writeTo(out);
+        return out.toString(StandardCharsets.UTF_8.name());
+    }
+
+}
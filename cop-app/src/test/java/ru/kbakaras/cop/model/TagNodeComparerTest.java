@@ -0,0 +1,55 @@
+package ru.kbakaras.cop.model;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.Optional;
+
+class TagNodeComparerTest {
+
+    @Test
+    void findDifference_SameContent_Empty() {
+
+        Assertions.assertEquals(Optional.empty(), findDifference(
+                "<p>Text <strong>bold</strong></p><ac:image><ri:attachment ri:filename=\"a.png\" /></ac:image>",
+                "<p>Text <strong>bold</strong></p><ac:image><ri:attachment ri:filename=\"a.png\" /></ac:image>"));
+    }
+
+    @Test
+    void findDifference_AttributeOrder_Empty() {
+
+        Assertions.assertEquals(Optional.empty(), findDifference(
+                "<ac:image ac:width=\"100\" ac:height=\"50\"></ac:image>",
+                "<ac:image ac:height=\"50\" ac:width=\"100\"></ac:image>"));
+    }
+
+    @Test
+    void findDifference_DifferentAttribute_PathToAttribute() {
+
+        Assertions.assertEquals(Optional.of("/p[1]/ac:image[2]/ri:attachment[1]: attribute 'ri:version-at-save'"), findDifference(
+                "<p><ac:image></ac:image><ac:image><ri:attachment ri:filename=\"b.png\" ri:version-at-save=\"2\" /></ac:image></p>",
+                "<p><ac:image></ac:image><ac:image><ri:attachment ri:filename=\"b.png\" ri:version-at-save=\"1\" /></ac:image></p>"));
+    }
+
+    @Test
+    void findDifference_DifferentText_PathToText() {
+
+        Assertions.assertEquals(Optional.of("/p[1]/text()[2]: different text"), findDifference(
+                "<p>First <em>x</em> second</p>",
+                "<p>First <em>x</em> changed</p>"));
+    }
+
+    @Test
+    void findDifference_MissingChild_ChildCount() {
+
+        Assertions.assertEquals(Optional.of("/: 2 child node(s) instead of 1"), findDifference(
+                "<p>One</p><p>Two</p>",
+                "<p>One</p>"));
+    }
+
+
+    private static Optional<String> findDifference(String expected, String actual) {
+        return TagNodeComparer.findDifference(PageSource.cleanContent(expected), PageSource.cleanContent(actual));
+    }
+
+}
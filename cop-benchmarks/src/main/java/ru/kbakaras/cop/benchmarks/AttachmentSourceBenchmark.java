@@ -0,0 +1,66 @@
+package ru.kbakaras.cop.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import ru.kbakaras.cop.model.AttachmentSource;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Создание {@link AttachmentSource}: определение типа содержимого и вычисление хэша файла.
+ * Размер файла задаётся в килобайтах. Файл читается из кэша файловой системы, поэтому замер
+ * отражает вычисления, а не скорость диска.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class AttachmentSourceBenchmark {
+
+    private static final byte[] PNG_SIGNATURE = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n'};
+
+    @Param({"16", "1024", "16384"})
+    public int sizeKb;
+
+    private Path file;
+
+
+    @Setup
+    public void setUp() throws IOException {
+
+        byte[] data = new byte[sizeKb * 1024];
+        new Random(sizeKb).nextBytes(data);
+        System.arraycopy(PNG_SIGNATURE, 0, data, 0, PNG_SIGNATURE.length);
+
+        file = Files.createTempFile("cop-benchmark-", ".png");
+        Files.write(file, data);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(file);
+    }
+
+
+    @Benchmark
+    public AttachmentSource create() {
+        return new AttachmentSource(file.toFile());
+    }
+
+}
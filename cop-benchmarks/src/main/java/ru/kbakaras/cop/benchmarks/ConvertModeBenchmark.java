@@ -0,0 +1,80 @@
+package ru.kbakaras.cop.benchmarks;
+
+import org.asciidoctor.Asciidoctor;
+import org.asciidoctor.Attributes;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import ru.kbakaras.cop.metrics.Metrics;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Сравнение режимов конвертации: обход дерева блоков из Java ({@code java}) и сборка содержимого
+ * составных узлов средствами Asciidoctor ({@code ruby}). Перед замером документ конвертируется один
+ * раз, и в вывод бенчмарка записывается количество переходов между Ruby и Java на один документ:
+ * вызовов конвертера из Ruby ({@code convert.callbacks}) и обращений конвертера к Ruby за содержимым
+ * ({@code convert.ruby-calls}). Количество не зависит от JIT и прогрева, поэтому замеряется однократно.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class ConvertModeBenchmark {
+
+    @Param({"java", "ruby"})
+    public String mode;
+
+    @Param({"LIST", "CALLOUTS", "MIXED"})
+    public Documents.Kind kind;
+
+    @Param({"100", "1000"})
+    public int size;
+
+    private Asciidoctor asciidoctor;
+    private String source;
+    private Attributes attributes;
+
+
+    @Setup
+    public void setUp() {
+
+        asciidoctor = Documents.createAsciidoctor();
+        source = kind.generate(size);
+        attributes = Attributes.builder().attribute("cop-convert-mode", mode).build();
+
+        Metrics.reset();
+        Documents.convert(asciidoctor, source, attributes);
+        Map<String, Long> counters = Metrics.getCounters();
+        Metrics.reset();
+
+        System.out.printf("%nBoundary crossings per document (mode %s, %s, size %d): callbacks %d, ruby calls %d%n",
+                mode, kind, size,
+                counters.getOrDefault("convert.callbacks", 0L),
+                counters.getOrDefault("convert.ruby-calls", 0L));
+    }
+
+    @TearDown
+    public void tearDown() {
+        asciidoctor.shutdown();
+    }
+
+
+    @Benchmark
+    public String convert() {
+        return Documents.convert(asciidoctor, source, attributes);
+    }
+
+}
@@ -0,0 +1,59 @@
+package ru.kbakaras.cop.benchmarks;
+
+import org.asciidoctor.Asciidoctor;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Конвертация сгенерированных документов в формат хранения Confluence через {@code ConfluenceConverter}.
+ * Время включает разбор документа Asciidoctor, но не запуск JRuby: экземпляр Asciidoctor
+ * создаётся один раз на весь замер, как и при пакетной публикации.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class ConverterBenchmark {
+
+    @Param({"TABLE", "LIST", "CALLOUTS", "JIRA", "MIXED"})
+    public Documents.Kind kind;
+
+    @Param({"10", "100", "1000"})
+    public int size;
+
+    private Asciidoctor asciidoctor;
+    private String source;
+
+
+    @Setup
+    public void setUp() {
+        asciidoctor = Documents.createAsciidoctor();
+        source = kind.generate(size);
+    }
+
+    @TearDown
+    public void tearDown() {
+        asciidoctor.shutdown();
+    }
+
+
+    @Benchmark
+    public String convert() {
+        return Documents.convert(asciidoctor, source);
+    }
+
+}
@@ -0,0 +1,203 @@
+package ru.kbakaras.cop.benchmarks;
+
+import org.apache.commons.lang3.StringUtils;
+import org.asciidoctor.Asciidoctor;
+import org.asciidoctor.Attributes;
+import org.asciidoctor.Options;
+import org.asciidoctor.SafeMode;
+import ru.kbakaras.cop.adoc.ConfluenceConverter;
+
+/**
+ * Генерация документов для бенчмарков. Размер документа задаётся количеством повторений
+ * характерного фрагмента: строк таблицы, элементов перечня, блоков с выносками, ссылок на Jira.
+ */
+public final class Documents {
+
+    private static final String JIRA_URL = "https://jira.example.com/browse/";
+
+    private Documents() {
+    }
+
+
+    public enum Kind {
+
+        /**
+         * Одна таблица из {@code size} строк: обычные ячейки, ячейки с разметкой asciidoc и объединения.
+         */
+        TABLE {
+            @Override
+            void append(StringBuilder document, int size) {
+
+                document.append("[cols=\"1,3,2,2a\", options=\"header\"]\n|===\n")
+                        .append("| № | Описание | Значение | Примечание\n\n");
+
+                for (int i = 1; i <= size; i++) {
+                    if (i % 10 == 0) {
+                        document.append("2+| Строка ").append(i).append(" с объединением двух ячеек")
+                                .append("\n| ").append(i * 31 % 1000);
+                    } else {
+                        document.append("| ").append(i)
+                                .append("\n| Описание строки ").append(i).append(" с *выделением* и `кодом`")
+                                .append("\n| ").append(i * 31 % 1000);
+                    }
+                    document.append("\na| * пункт ").append(i).append(".1\n* пункт ").append(i).append(".2\n\n");
+                }
+
+                document.append("|===\n\n");
+            }
+        },
+
+        /**
+         * Таблица справочника API из {@code size} строк: только текстовые ячейки, выравнивание
+         * и объединение строк, как в генерируемой документации.
+         */
+        REFERENCE {
+            @Override
+            void append(StringBuilder document, int size) {
+
+                document.append("[cols=\"2,1,4,1\", options=\"header\"]\n|===\n")
+                        .append("| Метод | Тип | Описание | Версия\n\n");
+
+                for (int i = 1; i <= size; i++) {
+                    boolean overload = i % 50 == 1 && i < size;
+                    document.append(overload ? ".2+| " : "| ").append("method").append(i).append("()");
+                    appendReferenceCells(document, i);
+                    if (overload) {
+                        appendReferenceCells(document, ++i);
+                    }
+                }
+
+                document.append("|===\n\n");
+            }
+
+            private void appendReferenceCells(StringBuilder document, int i) {
+                document.append("\n| `").append(i % 3 == 0 ? "String" : "int").append('`')
+                        .append("\n| Возвращает значение ").append(i).append(" с учётом _параметров_ вызова.")
+                        .append("\n^| 1.").append(i % 20).append("\n\n");
+            }
+        },
+
+        /**
+         * Перечень из {@code size} элементов, вложенность которых циклически нарастает до пяти уровней.
+         */
+        LIST {
+            @Override
+            void append(StringBuilder document, int size) {
+
+                for (int i = 0; i < size; i++) {
+                    int level = i % 5 + 1;
+                    // Маркированные и нумерованные уровни чередуются.
+                    document.append(StringUtils.repeat(level % 2 == 0 ? '.' : '*', level))
+                            .append(" Элемент ").append(i).append(" уровня ").append(level)
+                            .append(" с _курсивом_ и ссылкой https://example.com/").append(i).append("[пример]\n");
+                }
+                document.append('\n');
+            }
+        },
+
+        /**
+         * {@code size} блоков исходного кода с выносками и их описаниями.
+         */
+        CALLOUTS {
+            @Override
+            void append(StringBuilder document, int size) {
+
+                for (int i = 0; i < size; i++) {
+                    document.append("[source,java]\n----\n")
+                            .append("class Example").append(i).append(" { <1>\n")
+                            .append("    int value = ").append(i).append("; <2>\n")
+                            .append("    void run() { <3>\n")
+                            .append("        System.out.println(value); <4> <5>\n")
+                            .append("    }\n}\n----\n")
+                            .append("<1> Класс.\n<2> Поле.\n<3> Метод.\n<4> Вывод.\n<5> Ещё одна выноска.\n\n");
+                }
+            }
+        },
+
+        /**
+         * {@code size} абзацев, каждый из которых содержит ссылки на задачи Jira и обычную ссылку.
+         */
+        JIRA {
+            @Override
+            void append(StringBuilder document, int size) {
+
+                for (int i = 0; i < size; i++) {
+                    document.append("Задачи ")
+                            .append(JIRA_URL).append("COP-").append(i).append(" и ")
+                            .append(JIRA_URL).append("DOC-").append(i * 7).append(", см. также ")
+                            .append("https://example.com/docs/").append(i).append("[документацию].\n\n");
+                }
+            }
+        },
+
+        /**
+         * Документ из разделов, в каждом из которых есть все перечисленные выше фрагменты
+         * и блок примечания. Суммарный объём фрагментов каждого вида равен {@code size}.
+         */
+        MIXED {
+            @Override
+            void append(StringBuilder document, int size) {
+
+                int sections = Math.max(1, size / 10);
+                for (int s = 1; s <= sections; s++) {
+                    int part = size / sections + (s <= size % sections ? 1 : 0);
+
+                    document.append("== Раздел ").append(s).append("\n\n")
+                            .append("NOTE: Примечание к разделу ").append(s).append(".\n\n");
+                    JIRA.append(document, part);
+                    LIST.append(document, part);
+                    CALLOUTS.append(document, Math.max(1, part / 5));
+                    TABLE.append(document, part);
+                }
+            }
+        };
+
+
+        abstract void append(StringBuilder document, int size);
+
+        /**
+         * Исходный текст документа в формате asciidoc.
+         */
+        public String generate(int size) {
+
+            StringBuilder document = new StringBuilder()
+                    .append(":jira-url: ").append(JIRA_URL).append('\n')
+                    .append(":jira-server: System Jira\n")
+                    .append(":jira-server-id: a74c6e40-95c9-4774-be21-e8cead1db6f5\n")
+                    .append(":sectnums:\n\n")
+                    .append("= Документ ").append(name()).append(' ').append(size).append("\n\n");
+
+            append(document, size);
+            return document.toString();
+        }
+    }
+
+
+    public static Asciidoctor createAsciidoctor() {
+
+        Asciidoctor asciidoctor = Asciidoctor.Factory.create();
+        asciidoctor.javaConverterRegistry().register(ConfluenceConverter.class);
+        return asciidoctor;
+    }
+
+    /**
+     * Конвертация в формат хранения Confluence с теми же параметрами, что и при публикации.
+     */
+    public static String convert(Asciidoctor asciidoctor, String source) {
+        return convert(asciidoctor, source, Attributes.builder().build());
+    }
+
+    /**
+     * Конвертация с дополнительными атрибутами документа, например атрибутом режима конвертации.
+     */
+    public static String convert(Asciidoctor asciidoctor, String source, Attributes attributes) {
+
+        return asciidoctor.convert(source, Options.builder()
+                .backend("confluence")
+                .toFile(false)
+                .safe(SafeMode.UNSAFE)
+                .attributes(attributes)
+                .build());
+    }
+
+}
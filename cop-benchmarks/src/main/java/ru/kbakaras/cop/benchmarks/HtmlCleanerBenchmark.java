@@ -0,0 +1,55 @@
+package ru.kbakaras.cop.benchmarks;
+
+import org.asciidoctor.Asciidoctor;
+import org.htmlcleaner.HtmlCleaner;
+import org.htmlcleaner.TagNode;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link HtmlCleaner#clean(String)} с настройками по умолчанию на больших документах. В сравнении
+ * с {@link PageSourceBenchmark#cleanContent()} показывает, сколько стоят настройки формата хранения.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class HtmlCleanerBenchmark {
+
+    @Param({"100", "1000", "5000"})
+    public int size;
+
+    private String html;
+
+
+    @Setup
+    public void setUp() {
+
+        Asciidoctor asciidoctor = Documents.createAsciidoctor();
+        try {
+            html = Documents.convert(asciidoctor, Documents.Kind.MIXED.generate(size));
+        } finally {
+            asciidoctor.shutdown();
+        }
+    }
+
+
+    @Benchmark
+    public TagNode clean() {
+        return new HtmlCleaner().clean(html);
+    }
+
+}
@@ -0,0 +1,59 @@
+package ru.kbakaras.cop.benchmarks;
+
+import org.asciidoctor.Asciidoctor;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Конвертация очень больших таблиц справочника API ({@link Documents.Kind#REFERENCE}). Пропускная
+ * способность — строк таблицы в секунду; расход памяти на строку показывает запуск с {@code -prof gc}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 10)
+@Measurement(iterations = 5, time = 10)
+@Fork(1)
+public class LargeTableBenchmark {
+
+    @Param({"1000", "5000", "20000"})
+    public int rows;
+
+    private Asciidoctor asciidoctor;
+    private String source;
+
+
+    @Setup
+    public void setUp() {
+        asciidoctor = Documents.createAsciidoctor();
+        source = Documents.Kind.REFERENCE.generate(rows);
+    }
+
+    @TearDown
+    public void tearDown() {
+        asciidoctor.shutdown();
+    }
+
+
+    /**
+     * Одна операция — конвертация документа с таблицей, поэтому для получения количества строк
+     * в секунду результат умножается на {@code rows}.
+     */
+    @Benchmark
+    public String convert() {
+        return Documents.convert(asciidoctor, source);
+    }
+
+}
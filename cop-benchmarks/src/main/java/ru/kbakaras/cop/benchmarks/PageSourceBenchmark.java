@@ -0,0 +1,74 @@
+package ru.kbakaras.cop.benchmarks;
+
+import org.asciidoctor.Asciidoctor;
+import org.htmlcleaner.TagNode;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import ru.kbakaras.cop.model.PageSource;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Очистка и сериализация содержимого страницы ({@link PageSource}) на результате конвертации
+ * документа {@link Documents.Kind#MIXED}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class PageSourceBenchmark {
+
+    @Param({"10", "100", "1000"})
+    public int size;
+
+    private String html;
+    private TagNode content;
+
+
+    @Setup
+    public void setUp() {
+
+        Asciidoctor asciidoctor = Documents.createAsciidoctor();
+        try {
+            html = Documents.convert(asciidoctor, Documents.Kind.MIXED.generate(size));
+        } finally {
+            asciidoctor.shutdown();
+        }
+
+        content = PageSource.cleanContent(html);
+    }
+
+
+    @Benchmark
+    public TagNode cleanContent() {
+        return PageSource.cleanContent(html);
+    }
+
+    @Benchmark
+    public String serializeContent() {
+        return PageSource.serializeContent(content);
+    }
+
+    /**
+     * Потоковая запись ещё не сериализованного содержимого, как при отправке страницы в Confluence.
+     */
+    @Benchmark
+    public void writeTo() throws IOException {
+        new PageSource("Benchmark", content, Collections.emptyList()).writeTo(OutputStream.nullOutputStream());
+    }
+
+}